@@ -0,0 +1,206 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering;
+
+import io.gravitee.gateway.api.ExecutionContext;
+import io.gravitee.gateway.api.Request;
+import io.gravitee.gateway.api.Response;
+import io.gravitee.policy.api.PolicyChain;
+import io.gravitee.policy.api.PolicyResult;
+import io.gravitee.policy.geoipfiltering.configuration.CacheConfiguration;
+import io.gravitee.policy.geoipfiltering.configuration.CacheEviction;
+import io.gravitee.policy.geoipfiltering.configuration.CacheType;
+import io.gravitee.policy.geoipfiltering.configuration.GeoIPFilteringPolicyConfiguration;
+import io.gravitee.policy.geoipfiltering.configuration.LookupConfiguration;
+import io.gravitee.policy.geoipfiltering.lookup.StandInGeoIPService;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Runs requests of a global traffic mix through the policy, end to end, on a Vert.x event loop and against a stand-in
+ * geoip service on the event bus, replying with JSON objects as the geoip service does.
+ *
+ * Requests are handed to the event loop by bursts, as the gateway does when it reads several of them at once, and each
+ * invocation waits for all the requests of its burst to go through the policy.
+ *
+ * @author GraviteeSource Team
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GeoIPFilteringPolicyBenchmark {
+
+    private static final int BURST = 1024;
+
+    private static final int REQUESTS = 64 * BURST;
+
+    private static final int DISTINCT_ADDRESSES = 50_000;
+
+    @Param({ "NONE", "LRU", "TINY_LFU", "OFF_HEAP" })
+    private String cache;
+
+    @Param({ "0", "64" })
+    private int batchSize;
+
+    // JSON replies as in production, or RECORD replies passed by reference with -p replies=RECORD
+    @Param({ "JSON" })
+    private String replies;
+
+    private Vertx vertx;
+
+    private Context context;
+
+    private GeoIPFilteringPolicyConfiguration configuration;
+
+    private Request[] requests;
+
+    private Response response;
+
+    private ExecutionContext executionContext;
+
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        vertx = Vertx.vertx();
+        vertx
+            .deployVerticle(new StandInGeoIPService().recordReplies("RECORD".equals(replies)))
+            .toCompletionStage()
+            .toCompletableFuture()
+            .get();
+        context = vertx.getOrCreateContext();
+
+        configuration = new GeoIPFilteringPolicyConfiguration();
+        configuration.setWhitelistRules(TrafficMix.rules(null, 100, 42));
+        configuration.setCache(cacheConfiguration());
+
+        LookupConfiguration lookup = new LookupConfiguration();
+        lookup.setBatchSize(batchSize);
+        configuration.setLookup(lookup);
+
+        String[] addresses = TrafficMix.addresses(REQUESTS, DISTINCT_ADDRESSES, 7);
+        requests = new Request[REQUESTS];
+
+        for (int i = 0; i < REQUESTS; i++) {
+            requests[i] = Stubs.request(addresses[i]);
+        }
+
+        response = Stubs.response();
+        executionContext = Stubs.executionContext(vertx);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        vertx.close().toCompletionStage().toCompletableFuture().get();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public int onRequest() throws InterruptedException {
+        Burst burst = new Burst(BURST);
+        int from = next;
+
+        next = (next + BURST) % REQUESTS;
+
+        context.runOnContext(v -> {
+            for (int i = from; i < from + BURST; i++) {
+                new GeoIPFilteringPolicy(configuration).onRequest(requests[i], response, executionContext, burst);
+            }
+        });
+
+        return burst.await();
+    }
+
+    private CacheConfiguration cacheConfiguration() {
+        CacheConfiguration cacheConfiguration = new CacheConfiguration();
+
+        if (!"NONE".equals(cache)) {
+            cacheConfiguration.setEnabled(true);
+            cacheConfiguration.setMaxEntries(DISTINCT_ADDRESSES / 2);
+            cacheConfiguration.setDecisions(true);
+
+            if ("OFF_HEAP".equals(cache)) {
+                cacheConfiguration.setType(CacheType.OFF_HEAP);
+            } else {
+                cacheConfiguration.setEviction(CacheEviction.valueOf(cache));
+            }
+        }
+
+        return cacheConfiguration;
+    }
+
+    /**
+     * The policy chain of a burst of requests, which counts the requests going through it. It is only called from the
+     * event loop of the benchmark.
+     */
+    private static final class Burst implements PolicyChain {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private int remaining;
+
+        private int denied;
+
+        private Burst(int size) {
+            this.remaining = size;
+        }
+
+        @Override
+        public void doNext(Request request, Response response) {
+            complete();
+        }
+
+        @Override
+        public void failWith(PolicyResult policyResult) {
+            denied++;
+            complete();
+        }
+
+        @Override
+        public void streamFailWith(PolicyResult policyResult) {
+            failWith(policyResult);
+        }
+
+        private void complete() {
+            if (--remaining == 0) {
+                done.countDown();
+            }
+        }
+
+        private int await() throws InterruptedException {
+            done.await();
+            return denied;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.cache;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the heap and off-heap lookup caches, filled up to their maximum number of entries: hits on random cached
+ * addresses, and puts of new addresses evicting older ones.
+ *
+ * @author GraviteeSource Team
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms3g", "-Xmx3g" })
+public class LookupCacheBenchmark {
+
+    private static final int OPERATIONS = 4096;
+
+    private static final CompactCodec<Integer> CODEC = new CompactCodec<>() {
+        @Override
+        public short encode(Integer value) {
+            return value.shortValue();
+        }
+
+        @Override
+        public Integer decode(short value) {
+            return (int) value;
+        }
+    };
+
+    @Param({ "LRU", "TINY_LFU", "OFF_HEAP" })
+    private String cache;
+
+    @Param({ "1000000", "10000000" })
+    private int entries;
+
+    private LookupCache<Integer> lookupCache;
+
+    private long[] highs;
+
+    private long[] lows;
+
+    private int[] probes;
+
+    private long fresh;
+
+    @Setup
+    public void setup() {
+        switch (cache) {
+            case "LRU":
+                lookupCache = new LruCache<>(entries, 1, TimeUnit.HOURS, CacheKeys.ADDRESS);
+                break;
+            case "TINY_LFU":
+                lookupCache = new TinyLfuCache<>(entries, 1, TimeUnit.HOURS, CacheKeys.ADDRESS);
+                break;
+            default:
+                lookupCache = new OffHeapCache<>(entries, 1, TimeUnit.HOURS, CacheKeys.ADDRESS, CODEC);
+        }
+
+        Random random = new Random(42);
+        highs = new long[entries];
+        lows = new long[entries];
+
+        for (int i = 0; i < entries; i++) {
+            highs[i] = random.nextLong();
+            lows[i] = random.nextLong();
+            lookupCache.put(highs[i], lows[i], 1 + random.nextInt(1000));
+        }
+
+        probes = new int[OPERATIONS];
+
+        for (int i = 0; i < OPERATIONS; i++) {
+            probes[i] = random.nextInt(entries);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPERATIONS)
+    public int get() {
+        int found = 0;
+
+        for (int probe : probes) {
+            if (lookupCache.get(highs[probe], lows[probe]) != null) {
+                found++;
+            }
+        }
+
+        return found;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPERATIONS)
+    public void put() {
+        for (int i = 0; i < OPERATIONS; i++) {
+            // Addresses which were never cached, in another range than the ones of the setup
+            lookupCache.put(Long.MIN_VALUE, fresh++, 1 + (i & 511));
+        }
+    }
+}
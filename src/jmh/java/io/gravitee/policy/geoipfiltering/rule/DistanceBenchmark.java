@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.rule;
+
+import io.gravitee.policy.geoipfiltering.TrafficMix;
+import io.gravitee.policy.geoipfiltering.configuration.Rule;
+import io.gravitee.policy.geoipfiltering.configuration.RuleType;
+import io.gravitee.policy.geoipfiltering.lookup.GeoRecord;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Checks a single DISTANCE rule against a global traffic mix, with the precomputed rule and with the original haversine
+ * formula as a baseline.
+ *
+ * @author GraviteeSource Team
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DistanceBenchmark {
+
+    private static final int REQUESTS = 4096;
+
+    private Rule rule;
+
+    private DistanceRules distanceRules;
+
+    private GeoRecord[] records;
+
+    @Setup
+    public void setup() {
+        rule = TrafficMix.rules(RuleType.DISTANCE, 1, 42).get(0);
+        distanceRules = new DistanceRules(Collections.singletonList(rule));
+        records = TrafficMix.records(REQUESTS, 7);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS)
+    public int distanceRules() {
+        int matches = 0;
+
+        for (GeoRecord record : records) {
+            if (distanceRules.anyMatch(record.getLatitude(), record.getLongitude())) {
+                matches++;
+            }
+        }
+
+        return matches;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS)
+    public int haversine() {
+        int matches = 0;
+
+        for (GeoRecord record : records) {
+            if (distance(rule.getLatitude(), rule.getLongitude(), record.getLatitude(), record.getLongitude()) < rule.getDistance()) {
+                matches++;
+            }
+        }
+
+        return matches;
+    }
+
+    // The formula of the policy before DISTANCE rules were precomputed
+    private static double distance(double lat1, double lon1, double lat2, double lon2) {
+        lon1 = Math.toRadians(lon1);
+        lon2 = Math.toRadians(lon2);
+        lat1 = Math.toRadians(lat1);
+        lat2 = Math.toRadians(lat2);
+
+        double dlon = lon2 - lon1;
+        double dlat = lat2 - lat1;
+        double a = Math.pow(Math.sin(dlat / 2), 2) + Math.cos(lat1) * Math.cos(lat2) * Math.pow(Math.sin(dlon / 2), 2);
+
+        double c = 2 * Math.asin(Math.sqrt(a));
+
+        return (c * 6371 * 1000);
+    }
+}
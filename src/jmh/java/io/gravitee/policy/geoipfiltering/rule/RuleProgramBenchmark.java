@@ -0,0 +1,193 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.rule;
+
+import io.gravitee.policy.geoipfiltering.TrafficMix;
+import io.gravitee.policy.geoipfiltering.configuration.Rule;
+import io.gravitee.policy.geoipfiltering.configuration.RuleType;
+import io.gravitee.policy.geoipfiltering.lookup.GeoRecord;
+import io.vertx.core.json.JsonObject;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Evaluates compiled rules against the geo data of a global traffic mix, and the original rules evaluation of the policy
+ * against the same geo data in JSON as a baseline.
+ *
+ * @author GraviteeSource Team
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RuleProgramBenchmark {
+
+    private static final int REQUESTS = 4096;
+
+    @Param({ "1", "10", "100", "1000" })
+    private int rules;
+
+    @Param({ "COUNTRY", "DISTANCE", "MIXED" })
+    private String ruleType;
+
+    private RuleProgram program;
+
+    private List<Rule> whitelistRules;
+
+    private GeoRecord[] records;
+
+    private JsonObject[] geoData;
+
+    @Setup
+    public void setup() {
+        RuleType type = "MIXED".equals(ruleType) ? null : RuleType.valueOf(ruleType);
+
+        whitelistRules = TrafficMix.rules(type, rules, 42);
+        program = RuleProgram.compile(whitelistRules);
+        records = TrafficMix.records(REQUESTS, 7);
+        geoData = new JsonObject[REQUESTS];
+
+        for (int i = 0; i < REQUESTS; i++) {
+            geoData[i] = new JsonObject().put("country_iso_code", records[i].getCountryIsoCode());
+
+            if (!Double.isNaN(records[i].getLatitude())) {
+                geoData[i].put("lat", records[i].getLatitude()).put("lon", records[i].getLongitude());
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS)
+    public int evaluate() {
+        int matches = 0;
+
+        for (GeoRecord record : records) {
+            if (program.evaluate(record)) {
+                matches++;
+            }
+        }
+
+        return matches;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS)
+    public int evaluateCountryCode() {
+        int matches = 0;
+
+        for (GeoRecord record : records) {
+            if (program.evaluate(record.getCountryIsoCode(), record.getLatitude(), record.getLongitude())) {
+                matches++;
+            }
+        }
+
+        return matches;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS)
+    public int compare() {
+        int matches = 0;
+
+        for (JsonObject data : geoData) {
+            if (compare(data)) {
+                matches++;
+            }
+        }
+
+        return matches;
+    }
+
+    // The rules evaluation of the policy before rules were compiled
+    private boolean compare(JsonObject geoData) {
+        if (whitelistRules != null) {
+            return whitelistRules
+                .stream()
+                .anyMatch(
+                    new Predicate<Rule>() {
+                        @Override
+                        public boolean test(Rule rule) {
+                            switch (rule.getType()) {
+                                case COUNTRY:
+                                    return compareCountry(geoData, rule);
+                                case DISTANCE:
+                                    return compareDistance(geoData, rule);
+                            }
+
+                            return false;
+                        }
+                    }
+                );
+        }
+
+        return true;
+    }
+
+    private static boolean compareCountry(JsonObject geoData, Rule rule) {
+        return (
+            geoData != null &&
+            geoData.getString("country_iso_code") != null &&
+            geoData.getString("country_iso_code").equals(rule.getCountry())
+        );
+    }
+
+    private static boolean compareDistance(JsonObject geoData, Rule rule) {
+        Double reqLatitude = geoData.getDouble("lat");
+        Double reqLongitude = geoData.getDouble("lon");
+
+        if (reqLatitude == null || reqLongitude == null) {
+            return false;
+        }
+
+        double latitude = rule.getLatitude();
+        double longitude = rule.getLongitude();
+
+        double distance = distance(latitude, reqLatitude, longitude, reqLongitude);
+
+        return distance < rule.getDistance();
+    }
+
+    private static double distance(double lat1, double lat2, double lon1, double lon2) {
+        lon1 = Math.toRadians(lon1);
+        lon2 = Math.toRadians(lon2);
+        lat1 = Math.toRadians(lat1);
+        lat2 = Math.toRadians(lat2);
+
+        // Haversine formula
+        double dlon = lon2 - lon1;
+        double dlat = lat2 - lat1;
+        double a = Math.pow(Math.sin(dlat / 2), 2) + Math.cos(lat1) * Math.cos(lat2) * Math.pow(Math.sin(dlon / 2), 2);
+
+        double c = 2 * Math.asin(Math.sqrt(a));
+
+        return (c * 6371 * 1000);
+    }
+}
@@ -0,0 +1,247 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering;
+
+import io.gravitee.policy.geoipfiltering.cache.CompactCodec;
+import io.gravitee.policy.geoipfiltering.lookup.GeoRecord;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The verdict of the whitelist rules for a client, along with the geo data reported when the client is rejected.
+ *
+ * @author GraviteeSource Team
+ */
+final class Decision {
+
+    static final Decision ALLOWED = new Decision(true, null, null, null, null, null);
+
+    private static final Decision DENIED_UNKNOWN = new Decision(false, null, null, null, null, null);
+
+    private static final int SYMBOLS = 36;
+
+    private static final Decision[] DENIED = new Decision[SYMBOLS * SYMBOLS];
+
+    private static final int MAX_PAYLOADS = 1 << 14;
+
+    private final boolean allowed;
+
+    private final String countryIsoCode;
+
+    private final String countryName;
+
+    private final String regionName;
+
+    private final String cityName;
+
+    private final String timezone;
+
+    private Decision(boolean allowed, String countryIsoCode, String countryName, String regionName, String cityName, String timezone) {
+        this.allowed = allowed;
+        this.countryIsoCode = countryIsoCode;
+        this.countryName = countryName;
+        this.regionName = regionName;
+        this.cityName = cityName;
+        this.timezone = timezone;
+    }
+
+    static Decision denied(GeoRecord geoData) {
+        if (geoData == null) {
+            return DENIED_UNKNOWN;
+        }
+
+        return new Decision(
+            false,
+            geoData.getCountryIsoCode(),
+            geoData.getCountryName(),
+            geoData.getRegionName(),
+            geoData.getCityName(),
+            geoData.getTimezone()
+        );
+    }
+
+    static Decision denied(String countryIsoCode) {
+        return new Decision(false, countryIsoCode, null, null, null, null);
+    }
+
+    /**
+     * Returns a codec encoding decisions to their verdict and an id of their denial payload, which is all that is kept of
+     * decisions cached off-heap. Distinct denial payloads are interned on-heap by the codec, up to {@value #MAX_PAYLOADS}
+     * of them, so that a codec must be confined to its cache and goes away with it. A decision only made of a country code,
+     * made of two upper case letters or digits, is encoded to that code instead, as is any decision once the payloads are
+     * all taken.
+     */
+    static CompactCodec<Decision> codec() {
+        return new Codec();
+    }
+
+    private static Decision denied(int countryIndex) {
+        if (countryIndex < 0 || countryIndex >= DENIED.length) {
+            return DENIED_UNKNOWN;
+        }
+
+        Decision decision = DENIED[countryIndex];
+
+        if (decision == null) {
+            // Decisions are immutable, racing event loops would only create equal ones
+            decision = denied(new String(new char[] { symbol(countryIndex / SYMBOLS), symbol(countryIndex % SYMBOLS) }));
+            DENIED[countryIndex] = decision;
+        }
+
+        return decision;
+    }
+
+    private static int countryIndex(String countryIsoCode) {
+        if (countryIsoCode == null || countryIsoCode.length() != 2) {
+            return -1;
+        }
+
+        int first = symbolIndex(countryIsoCode.charAt(0));
+        int second = symbolIndex(countryIsoCode.charAt(1));
+
+        return first < 0 || second < 0 ? -1 : first * SYMBOLS + second;
+    }
+
+    private static int symbolIndex(char c) {
+        if (c >= 'A' && c <= 'Z') {
+            return c - 'A';
+        } else if (c >= '0' && c <= '9') {
+            return 26 + c - '0';
+        }
+
+        return -1;
+    }
+
+    private static char symbol(int index) {
+        return index < 26 ? (char) ('A' + index) : (char) ('0' + index - 26);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+
+        if (!(o instanceof Decision)) {
+            return false;
+        }
+
+        Decision decision = (Decision) o;
+
+        return (
+            allowed == decision.allowed &&
+            Objects.equals(countryIsoCode, decision.countryIsoCode) &&
+            Objects.equals(countryName, decision.countryName) &&
+            Objects.equals(regionName, decision.regionName) &&
+            Objects.equals(cityName, decision.cityName) &&
+            Objects.equals(timezone, decision.timezone)
+        );
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(allowed, countryIsoCode, countryName, regionName, cityName, timezone);
+    }
+
+    boolean isAllowed() {
+        return allowed;
+    }
+
+    String getCountryIsoCode() {
+        return countryIsoCode;
+    }
+
+    String getCountryName() {
+        return countryName;
+    }
+
+    String getRegionName() {
+        return regionName;
+    }
+
+    String getCityName() {
+        return cityName;
+    }
+
+    String getTimezone() {
+        return timezone;
+    }
+
+    private static final class Codec implements CompactCodec<Decision> {
+
+        private final Map<Decision, Integer> payloadIds = new HashMap<>();
+
+        private final List<Decision> payloads = new ArrayList<>();
+
+        @Override
+        public short encode(Decision decision) {
+            if (decision.allowed) {
+                return 1;
+            }
+
+            int payload = payloadId(decision);
+
+            if (payload >= 0) {
+                return (short) (payload << 2 | 2);
+            }
+
+            return (short) ((countryIndex(decision.countryIsoCode) + 1) << 2);
+        }
+
+        @Override
+        public Decision decode(short value) {
+            int bits = value & 0xFFFF;
+
+            if ((bits & 1) != 0) {
+                return ALLOWED;
+            }
+
+            if ((bits & 2) != 0) {
+                int payload = bits >>> 2;
+                return payload < payloads.size() ? payloads.get(payload) : DENIED_UNKNOWN;
+            }
+
+            return denied((bits >>> 2) - 1);
+        }
+
+        /**
+         * Returns the id of the interned denial payload of a decision, or <code>-1</code> if the decision is only made of a
+         * country code or if no more payloads can be interned.
+         */
+        private int payloadId(Decision decision) {
+            if (decision.countryName == null && decision.regionName == null && decision.cityName == null && decision.timezone == null) {
+                return -1;
+            }
+
+            Integer id = payloadIds.get(decision);
+
+            if (id != null) {
+                return id;
+            }
+
+            if (payloads.size() == MAX_PAYLOADS) {
+                return -1;
+            }
+
+            payloadIds.put(decision, payloads.size());
+            payloads.add(decision);
+            return payloads.size() - 1;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering;
+
+import io.gravitee.policy.geoipfiltering.cache.CacheKeys;
+import io.gravitee.policy.geoipfiltering.cache.LookupCache;
+import io.gravitee.policy.geoipfiltering.cache.LruCache;
+import io.gravitee.policy.geoipfiltering.cache.OffHeapCache;
+import io.gravitee.policy.geoipfiltering.cache.TinyLfuCache;
+import io.gravitee.policy.geoipfiltering.configuration.CacheConfiguration;
+import io.gravitee.policy.geoipfiltering.configuration.CacheEviction;
+import io.gravitee.policy.geoipfiltering.configuration.CacheType;
+import io.gravitee.policy.geoipfiltering.configuration.CircuitBreakerConfiguration;
+import io.gravitee.policy.geoipfiltering.configuration.GeoIPFilteringPolicyConfiguration;
+import io.gravitee.policy.geoipfiltering.configuration.LookupConfiguration;
+import io.gravitee.policy.geoipfiltering.configuration.LookupMode;
+import io.gravitee.policy.geoipfiltering.configuration.TimeoutAction;
+import io.gravitee.policy.geoipfiltering.ip.IpAddress;
+import io.gravitee.policy.geoipfiltering.lookup.CircuitBreaker;
+import io.gravitee.policy.geoipfiltering.lookup.GeoRecord;
+import io.gravitee.policy.geoipfiltering.lookup.LookupBatch;
+import io.gravitee.policy.geoipfiltering.metrics.GeoIPMetrics;
+import io.gravitee.policy.geoipfiltering.mmdb.MaxMindDatabase;
+import io.gravitee.policy.geoipfiltering.mmdb.MaxMindDatabases;
+import io.gravitee.policy.geoipfiltering.mmdb.MaxMindResult;
+import io.gravitee.policy.geoipfiltering.rule.RuleProgram;
+import io.vertx.core.VertxOptions;
+import io.vertx.core.eventbus.DeliveryOptions;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The state of the policy which is local to an event loop, for a given policy configuration.
+ *
+ * A new policy instance is created for each request, but the configuration instance is shared for as long as the API is
+ * deployed. The state is thus keyed by configuration instance, and dropped once the configuration is garbage collected.
+ * This is also what invalidates the cached decisions when the API is redeployed with another configuration.
+ *
+ * @author GraviteeSource Team
+ */
+final class EventLoopState {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EventLoopState.class);
+
+    // The event loops of the gateway, among which the entries of an off-heap cache are split
+    private static final int EVENT_LOOPS = VertxOptions.DEFAULT_EVENT_LOOP_POOL_SIZE;
+
+    private static final ThreadLocal<Map<GeoIPFilteringPolicyConfiguration, EventLoopState>> STATES = ThreadLocal.withInitial(
+        WeakHashMap::new
+    );
+
+    // Rule programs are immutable, they are compiled once per configuration and shared by all the event loops.
+    private static final Map<GeoIPFilteringPolicyConfiguration, RuleProgram> RULE_PROGRAMS = Collections.synchronizedMap(
+        new WeakHashMap<>()
+    );
+
+    // So are circuit breakers, for their state to be shared by all the policy instances of an API. They are not shared by
+    // all the APIs of the gateway, although they all query the same geoip service: what makes a lookup fail, its timeout
+    // and whether it may leave the node, and when the circuit opens and is probed again are all configured per API. An API
+    // with a short lookup timeout would otherwise open the circuit of the APIs willing to wait longer. The price is that
+    // each API goes through its own failureThreshold of failed lookups before its circuit opens.
+    private static final Map<GeoIPFilteringPolicyConfiguration, CircuitBreaker> CIRCUIT_BREAKERS = Collections.synchronizedMap(
+        new WeakHashMap<>()
+    );
+
+    private final RuleProgram ruleProgram;
+
+    private final LookupCache<GeoRecord> geoDataCache;
+
+    private final LookupCache<Decision> decisionCache;
+
+    private final boolean staleWhileRevalidate;
+
+    private final boolean embedded;
+
+    private final MaxMindDatabase database;
+
+    private final MaxMindResult maxMindResult = new MaxMindResult();
+
+    private final IpAddress ipAddress = new IpAddress();
+
+    private final DeliveryOptions deliveryOptions;
+
+    private final TimeoutAction timeoutAction;
+
+    private final CircuitBreaker circuitBreaker;
+
+    private final LookupBatch lookupBatch;
+
+    private EventLoopState(GeoIPFilteringPolicyConfiguration configuration) {
+        this.ruleProgram =
+            RULE_PROGRAMS.computeIfAbsent(
+                configuration,
+                c -> RuleProgram.compile(c.getWhitelistRules(), c.isRuleMetrics(), c.isAdaptiveRuleOrder())
+            );
+
+        CacheConfiguration cache = configuration.getCache();
+
+        if (cache != null && cache.isEnabled() && cache.getMaxEntries() > 0) {
+            CacheKeys keys = new CacheKeys(cache.getKey(), cache.getIpv4PrefixLength(), cache.getIpv6PrefixLength());
+
+            if (cache.getType() == CacheType.OFF_HEAP) {
+                // Geo data is not kept off-heap, only the decisions taken on it, so there is nothing to cache without them
+                this.geoDataCache = null;
+                this.decisionCache = cache.isDecisions() ? offHeapCache(cache, keys) : null;
+            } else {
+                this.geoDataCache = heapCache(cache, keys);
+                this.decisionCache = cache.isDecisions() ? heapCache(cache, keys) : null;
+            }
+            this.staleWhileRevalidate = cache.isStaleWhileRevalidate();
+        } else {
+            this.geoDataCache = null;
+            this.decisionCache = null;
+            this.staleWhileRevalidate = false;
+        }
+
+        if (geoDataCache != null) {
+            GeoIPMetrics.get().bind("geo_data", geoDataCache);
+        }
+
+        if (decisionCache != null) {
+            GeoIPMetrics.get().bind("decisions", decisionCache);
+        }
+
+        LookupConfiguration lookup = configuration.getLookup();
+
+        this.embedded = lookup != null && lookup.getMode() == LookupMode.EMBEDDED;
+        this.database = embedded ? MaxMindDatabases.open(lookup.getDatabasePath()) : null;
+        this.deliveryOptions = lookup != null ? deliveryOptions(lookup) : null;
+        this.timeoutAction = lookup != null ? lookup.getTimeoutAction() : null;
+        this.lookupBatch = lookup != null && lookup.getBatchSize() > 1 && !embedded ? new LookupBatch(lookup.getBatchSize()) : null;
+
+        CircuitBreakerConfiguration circuitBreaker = configuration.getCircuitBreaker();
+
+        this.circuitBreaker =
+            circuitBreaker != null && circuitBreaker.isEnabled() && !embedded
+                ? CIRCUIT_BREAKERS.computeIfAbsent(
+                    configuration,
+                    c -> new CircuitBreaker(circuitBreaker.getFailureThreshold(), circuitBreaker.getResetTimeout(), TimeUnit.MILLISECONDS)
+                )
+                : null;
+    }
+
+    private static DeliveryOptions deliveryOptions(LookupConfiguration lookup) {
+        if (lookup.getTimeout() <= 0 && !lookup.isLocalOnly()) {
+            return null;
+        }
+
+        DeliveryOptions options = new DeliveryOptions().setLocalOnly(lookup.isLocalOnly());
+
+        if (lookup.getTimeout() > 0) {
+            options.setSendTimeout(lookup.getTimeout());
+        }
+
+        return options;
+    }
+
+    /**
+     * Allocates the off-heap cache of this event loop, its share of the entries of the gateway, or falls back to a heap
+     * cache if there is not enough direct memory left.
+     */
+    private static LookupCache<Decision> offHeapCache(CacheConfiguration cache, CacheKeys keys) {
+        int maxEntries = Math.max(1, cache.getMaxEntries() / EVENT_LOOPS);
+
+        try {
+            return new OffHeapCache<>(maxEntries, cache.getTtl(), TimeUnit.SECONDS, keys, Decision.codec());
+        } catch (OutOfMemoryError oome) {
+            LOGGER.warn("Unable to allocate an off-heap cache of {} entries, decisions are cached in the heap instead", maxEntries, oome);
+            return heapCache(cache, keys);
+        }
+    }
+
+    private static <V> LookupCache<V> heapCache(CacheConfiguration cache, CacheKeys keys) {
+        if (cache.getEviction() == CacheEviction.TINY_LFU) {
+            return new TinyLfuCache<>(cache.getMaxEntries(), cache.getTtl(), TimeUnit.SECONDS, keys);
+        }
+
+        return new LruCache<>(cache.getMaxEntries(), cache.getTtl(), TimeUnit.SECONDS, keys);
+    }
+
+    static EventLoopState current(GeoIPFilteringPolicyConfiguration configuration) {
+        Map<GeoIPFilteringPolicyConfiguration, EventLoopState> states = STATES.get();
+        EventLoopState state = states.get(configuration);
+
+        if (state == null) {
+            state = new EventLoopState(configuration);
+            states.put(configuration, state);
+        }
+
+        return state;
+    }
+
+    RuleProgram ruleProgram() {
+        return ruleProgram;
+    }
+
+    /**
+     * Returns the geo data cache, or <code>null</code> if the cache is disabled or kept off-heap.
+     */
+    LookupCache<GeoRecord> geoDataCache() {
+        return geoDataCache;
+    }
+
+    /**
+     * Returns the cache of the decisions taken per remote address, or <code>null</code> if it is disabled.
+     */
+    LookupCache<Decision> decisionCache() {
+        return decisionCache;
+    }
+
+    /**
+     * Returns whether expired geo data is still used, while it is refreshed in the background.
+     */
+    boolean isStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    /**
+     * Returns whether addresses are looked up in a local MaxMind DB file, rather than by the geoip service.
+     */
+    boolean isEmbedded() {
+        return embedded;
+    }
+
+    /**
+     * Returns the local MaxMind DB, or <code>null</code> if it is not used or could not be opened.
+     */
+    MaxMindDatabase database() {
+        return database;
+    }
+
+    /**
+     * Returns the lookup result reused by the lookups of this event loop.
+     */
+    MaxMindResult maxMindResult() {
+        return maxMindResult;
+    }
+
+    /**
+     * Returns the IP address reused to parse the remote addresses of the requests of this event loop.
+     */
+    IpAddress ipAddress() {
+        return ipAddress;
+    }
+
+    /**
+     * Returns the options of the lookups sent to the geoip service, or <code>null</code> to use the event bus defaults.
+     */
+    DeliveryOptions deliveryOptions() {
+        return deliveryOptions;
+    }
+
+    /**
+     * Returns what to do when a lookup times out, or <code>null</code> to handle the remote address as unknown.
+     */
+    TimeoutAction timeoutAction() {
+        return timeoutAction;
+    }
+
+    /**
+     * Returns the circuit breaker around the geoip service, or <code>null</code> if it is disabled.
+     */
+    CircuitBreaker circuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Returns the batch gathering the lookups of this event loop, or <code>null</code> if lookups are sent one by one.
+     */
+    LookupBatch lookupBatch() {
+        return lookupBatch;
+    }
+}
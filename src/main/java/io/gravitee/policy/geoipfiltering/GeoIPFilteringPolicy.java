@@ -23,14 +23,22 @@ import io.gravitee.gateway.api.Response;
 import io.gravitee.policy.api.PolicyChain;
 import io.gravitee.policy.api.PolicyResult;
 import io.gravitee.policy.api.annotations.OnRequest;
+import io.gravitee.policy.geoipfiltering.cache.LookupCache;
 import io.gravitee.policy.geoipfiltering.configuration.GeoIPFilteringPolicyConfiguration;
-import io.gravitee.policy.geoipfiltering.configuration.Rule;
+import io.gravitee.policy.geoipfiltering.configuration.TimeoutAction;
+import io.gravitee.policy.geoipfiltering.ip.IpAddress;
+import io.gravitee.policy.geoipfiltering.lookup.GeoIPLookup;
+import io.gravitee.policy.geoipfiltering.lookup.GeoRecord;
+import io.gravitee.policy.geoipfiltering.metrics.GeoIPMetrics;
+import io.gravitee.policy.geoipfiltering.metrics.LookupFailure;
+import io.gravitee.policy.geoipfiltering.mmdb.MaxMindDatabase;
+import io.gravitee.policy.geoipfiltering.mmdb.MaxMindResult;
+import io.gravitee.policy.geoipfiltering.rule.RuleMatches;
+import io.gravitee.policy.geoipfiltering.rule.RuleProgram;
 import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
 import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
-import io.vertx.core.eventbus.Message;
-import io.vertx.core.json.JsonObject;
-import java.util.function.Predicate;
 
 /**
  * @author David BRASSELY (david.brassely at graviteesource.com)
@@ -38,136 +46,311 @@ import java.util.function.Predicate;
  */
 public class GeoIPFilteringPolicy {
 
-    private static final String GEOIP_SERVICE = "service:geoip";
-
     private static final String GEOIP_FILTERING_UNKNOWN = "GEOIP_FILTERING_UNKNOWN";
     private static final String GEOIP_FILTERING_INVALID = "GEOIP_FILTERING_INVALID";
+    private static final String GEOIP_FILTERING_TIMEOUT = "GEOIP_FILTERING_TIMEOUT";
+
+    private static final GeoIPMetrics METRICS = GeoIPMetrics.get();
 
     private final GeoIPFilteringPolicyConfiguration configuration;
 
+    private final EventLoopState state;
+
+    private final RuleProgram ruleProgram;
+
     public GeoIPFilteringPolicy(GeoIPFilteringPolicyConfiguration configuration) {
         this.configuration = configuration;
+        this.state = EventLoopState.current(configuration);
+        this.ruleProgram = state.ruleProgram();
     }
 
     @OnRequest
     public void onRequest(Request request, Response response, ExecutionContext context, PolicyChain policyChain) {
+        // Caches are confined to the event loop, reply handlers must then be called back on this same thread.
+        final boolean onEventLoop = Context.isOnEventLoopThread();
+        final IpAddress address = onEventLoop ? state.ipAddress() : new IpAddress();
+        final boolean packed = address.parse(request.remoteAddress());
+        // Remote addresses which are not IP addresses are never cached, and never found in a local database
+        final LookupCache<GeoRecord> cache = onEventLoop && packed ? state.geoDataCache() : null;
+        final LookupCache<Decision> decisions = onEventLoop && packed ? state.decisionCache() : null;
+        // The packed remote address keying the caches, copied as the parsed address is reused by later requests
+        final long addressHigh = address.high();
+        final long addressLow = address.low();
+        final RuleMatches matches = ruleProgram.matches();
+
+        // Counters of the rules are exported on the first request, which tells the API they belong to
+        if (matches != null && matches.export()) {
+            METRICS.bindRules((String) context.getAttribute(ExecutionContext.ATTR_API), matches);
+        }
+
+        if (decisions != null) {
+            Decision decision = decisions.get(addressHigh, addressLow);
+
+            if (decision != null) {
+                apply(decision, request, response, policyChain);
+                return;
+            }
+        }
+
+        if (state.isEmbedded()) {
+            MaxMindResult result = onEventLoop ? state.maxMindResult() : new MaxMindResult();
+            lookupEmbedded(packed ? address : null, result, decisions, addressHigh, addressLow, request, response, policyChain);
+            return;
+        }
+
+        if (cache != null) {
+            GeoRecord geoData = cache.get(addressHigh, addressLow);
+
+            if (geoData != null) {
+                filter(geoData, decisions, addressHigh, addressLow, request, response, policyChain);
+                return;
+            }
+        }
+
+        if (state.isStaleWhileRevalidate() && (cache != null || decisions != null)) {
+            GeoRecord geoData = cache != null ? cache.getStale(addressHigh, addressLow) : null;
+
+            if (geoData != null) {
+                revalidate(context.getComponent(Vertx.class), cache, decisions, addressHigh, addressLow, request.remoteAddress());
+                // The decision taken on stale geo data is not cached, the refreshed geo data being used as soon as replied
+                filter(geoData, null, addressHigh, addressLow, request, response, policyChain);
+                return;
+            }
+
+            Decision decision = decisions != null ? decisions.getStale(addressHigh, addressLow) : null;
+
+            if (decision != null) {
+                revalidate(context.getComponent(Vertx.class), cache, decisions, addressHigh, addressLow, request.remoteAddress());
+                apply(decision, request, response, policyChain);
+                return;
+            }
+        }
+
         Vertx vertx = context.getComponent(Vertx.class);
+        long lookupStartedAt = METRICS.lookupStarted();
+
+        GeoIPLookup.lookup(
+            vertx,
+            request.remoteAddress(),
+            state.deliveryOptions(),
+            state.circuitBreaker(),
+            state.lookupBatch(),
+            new Handler<AsyncResult<GeoRecord>>() {
+                @Override
+                public void handle(AsyncResult<GeoRecord> result) {
+                    METRICS.lookupCompleted(lookupStartedAt, failure(result));
 
-        vertx
-            .eventBus()
-            .request(
-                GEOIP_SERVICE,
-                request.remoteAddress(),
-                new Handler<AsyncResult<Message<JsonObject>>>() {
-                    @Override
-                    public void handle(AsyncResult<Message<JsonObject>> message) {
-                        if (message.failed()) {
-                            if (configuration.isFailOnUnknown()) {
-                                policyChain.failWith(
-                                    PolicyResult.failure(
-                                        GEOIP_FILTERING_UNKNOWN,
-                                        HttpStatusCode.FORBIDDEN_403,
-                                        "You're not allowed to access this resource",
-                                        Maps.<String, Object>builder().put("remote_address", request.remoteAddress()).build()
-                                    )
-                                );
-                            } else {
-                                policyChain.doNext(request, response);
-                            }
-                        } else {
-                            JsonObject geoData = message.result().body();
-
-                            boolean match = compare(geoData);
-
-                            if (match) {
-                                policyChain.doNext(request, response);
-                            } else {
-                                policyChain.failWith(
-                                    PolicyResult.failure(
-                                        GEOIP_FILTERING_INVALID,
-                                        HttpStatusCode.FORBIDDEN_403,
-                                        "You're not allowed to access this resource",
-                                        Maps
-                                            .<String, Object>builder()
-                                            .put("remote_address", request.remoteAddress())
-                                            .put("country_iso_code", geoData.getString("country_iso_code"))
-                                            .put("country_name", geoData.getString("country_name"))
-                                            .put("region_name", geoData.getString("region_name"))
-                                            .put("city_name", geoData.getString("city_name"))
-                                            .put("timezone", geoData.getString("timezone"))
-                                            .build()
-                                    )
-                                );
-                            }
+                    // Lookups rejected by an open circuit breaker are handled as if they had timed out
+                    if (result.failed() && (GeoIPLookup.isTimeout(result.cause()) || GeoIPLookup.isCircuitOpen(result.cause()))) {
+                        timeout(cache, decisions, addressHigh, addressLow, request, response, policyChain);
+                    } else if (result.failed()) {
+                        unknown(request, response, policyChain);
+                    } else {
+                        GeoRecord geoData = result.result();
+
+                        if (cache != null && geoData != null) {
+                            cache.put(addressHigh, addressLow, geoData);
                         }
+
+                        filter(geoData, decisions, addressHigh, addressLow, request, response, policyChain);
                     }
                 }
-            );
+            }
+        );
     }
 
-    private boolean compare(JsonObject geoData) {
-        if (configuration.getWhitelistRules() != null) {
-            return configuration
-                .getWhitelistRules()
-                .stream()
-                .anyMatch(
-                    new Predicate<Rule>() {
-                        @Override
-                        public boolean test(Rule rule) {
-                            switch (rule.getType()) {
-                                case COUNTRY:
-                                    return compareCountry(geoData, rule);
-                                case DISTANCE:
-                                    return compareDistance(geoData, rule);
-                            }
-
-                            return false;
-                        }
-                    }
-                );
+    private void lookupEmbedded(
+        IpAddress address,
+        MaxMindResult result,
+        LookupCache<Decision> decisions,
+        long addressHigh,
+        long addressLow,
+        Request request,
+        Response response,
+        PolicyChain policyChain
+    ) {
+        MaxMindDatabase database = state.database();
+        long lookupStartedAt = METRICS.lookupStarted();
+        LookupFailure failure = null;
+
+        if (database == null) {
+            failure = LookupFailure.NO_DATABASE;
+        } else if (address == null) {
+            failure = LookupFailure.INVALID_ADDRESS;
+        } else if (!database.lookup(address, result)) {
+            failure = LookupFailure.NO_DATA;
+        }
+
+        METRICS.embeddedLookupCompleted(lookupStartedAt, failure);
+
+        if (failure != null) {
+            unknown(request, response, policyChain);
+            return;
+        }
+
+        boolean match = ruleProgram.evaluate(result.getCountry(), result.getLatitude(), result.getLongitude());
+        Decision decision = match ? Decision.ALLOWED : Decision.denied(result.getCountryIsoCode());
+
+        if (decisions != null) {
+            decisions.put(addressHigh, addressLow, result.getPrefixLength(), decision);
         }
 
-        return true;
+        apply(decision, request, response, policyChain);
     }
 
-    private boolean compareCountry(JsonObject geoData, Rule rule) {
-        return (
-            geoData != null &&
-            geoData.getString("country_iso_code") != null &&
-            geoData.getString("country_iso_code").equals(rule.getCountry())
+    private void revalidate(
+        Vertx vertx,
+        LookupCache<GeoRecord> cache,
+        LookupCache<Decision> decisions,
+        long addressHigh,
+        long addressLow,
+        String remoteAddress
+    ) {
+        GeoIPLookup.refresh(
+            vertx,
+            remoteAddress,
+            state.deliveryOptions(),
+            state.circuitBreaker(),
+            state.lookupBatch(),
+            result -> {
+                // On failure, the stale entries are kept and the refresh retried by the next request
+                if (result.succeeded() && result.result() != null) {
+                    if (cache != null) {
+                        cache.put(addressHigh, addressLow, result.result());
+                    }
+
+                    if (decisions != null) {
+                        decisions.put(addressHigh, addressLow, decide(result.result()));
+                    }
+                }
+            }
         );
     }
 
-    private boolean compareDistance(JsonObject geoData, Rule rule) {
-        Double reqLatitude = geoData.getDouble("lat");
-        Double reqLongitude = geoData.getDouble("lon");
+    private void timeout(
+        LookupCache<GeoRecord> cache,
+        LookupCache<Decision> decisions,
+        long addressHigh,
+        long addressLow,
+        Request request,
+        Response response,
+        PolicyChain policyChain
+    ) {
+        TimeoutAction action = state.timeoutAction();
+
+        if (action == TimeoutAction.ALLOW) {
+            METRICS.allowed();
+            policyChain.doNext(request, response);
+        } else if (action == TimeoutAction.DENY) {
+            METRICS.timedOut();
+            policyChain.failWith(
+                PolicyResult.failure(
+                    GEOIP_FILTERING_TIMEOUT,
+                    HttpStatusCode.FORBIDDEN_403,
+                    "You're not allowed to access this resource",
+                    Maps.<String, Object>builder().put("remote_address", request.remoteAddress()).build()
+                )
+            );
+        } else if (action == TimeoutAction.STALE) {
+            Decision decision = decisions != null ? decisions.getStale(addressHigh, addressLow) : null;
+
+            if (decision != null) {
+                apply(decision, request, response, policyChain);
+                return;
+            }
+
+            GeoRecord geoData = cache != null ? cache.getStale(addressHigh, addressLow) : null;
 
-        if (reqLatitude == null || reqLongitude == null) {
-            return false;
+            if (geoData != null) {
+                // The decision taken on stale geo data is not cached, to look the address up again on the next request
+                filter(geoData, null, addressHigh, addressLow, request, response, policyChain);
+            } else {
+                unknown(request, response, policyChain);
+            }
+        } else {
+            unknown(request, response, policyChain);
         }
+    }
 
-        double latitude = rule.getLatitude();
-        double longitude = rule.getLongitude();
+    private void unknown(Request request, Response response, PolicyChain policyChain) {
+        if (configuration.isFailOnUnknown()) {
+            METRICS.unknown();
+            policyChain.failWith(
+                PolicyResult.failure(
+                    GEOIP_FILTERING_UNKNOWN,
+                    HttpStatusCode.FORBIDDEN_403,
+                    "You're not allowed to access this resource",
+                    Maps.<String, Object>builder().put("remote_address", request.remoteAddress()).build()
+                )
+            );
+        } else {
+            METRICS.allowed();
+            policyChain.doNext(request, response);
+        }
+    }
 
-        double distance = distance(latitude, reqLatitude, longitude, reqLongitude);
+    private void filter(
+        GeoRecord geoData,
+        LookupCache<Decision> decisions,
+        long addressHigh,
+        long addressLow,
+        Request request,
+        Response response,
+        PolicyChain policyChain
+    ) {
+        Decision decision = decide(geoData);
 
-        return distance < rule.getDistance();
+        if (decisions != null) {
+            decisions.put(addressHigh, addressLow, decision);
+        }
+
+        apply(decision, request, response, policyChain);
     }
 
-    private static double distance(double lat1, double lat2, double lon1, double lon2) {
-        lon1 = Math.toRadians(lon1);
-        lon2 = Math.toRadians(lon2);
-        lat1 = Math.toRadians(lat1);
-        lat2 = Math.toRadians(lat2);
+    private Decision decide(GeoRecord geoData) {
+        return ruleProgram.evaluate(geoData) ? Decision.ALLOWED : Decision.denied(geoData);
+    }
 
-        // Haversine formula
-        double dlon = lon2 - lon1;
-        double dlat = lat2 - lat1;
-        double a = Math.pow(Math.sin(dlat / 2), 2) + Math.cos(lat1) * Math.cos(lat2) * Math.pow(Math.sin(dlon / 2), 2);
+    /**
+     * Returns why a lookup did not find the geo data of the remote address, or <code>null</code> if it did.
+     */
+    private static LookupFailure failure(AsyncResult<GeoRecord> result) {
+        if (result.succeeded()) {
+            return result.result() != null ? null : LookupFailure.NO_DATA;
+        } else if (GeoIPLookup.isTimeout(result.cause())) {
+            return LookupFailure.TIMEOUT;
+        } else if (GeoIPLookup.isCircuitOpen(result.cause())) {
+            return LookupFailure.CIRCUIT_OPEN;
+        } else if (GeoIPLookup.isNoService(result.cause())) {
+            return LookupFailure.NO_SERVICE;
+        }
 
-        double c = 2 * Math.asin(Math.sqrt(a));
+        // The geoip service replied with a failure, as it does for an address without geo data
+        return LookupFailure.NO_DATA;
+    }
 
-        // calculate the result in kilometers (6371 = Radius of earth in kilometers)
-        return (c * 6371 * 1000);
+    private void apply(Decision decision, Request request, Response response, PolicyChain policyChain) {
+        if (decision.isAllowed()) {
+            METRICS.allowed();
+            policyChain.doNext(request, response);
+        } else {
+            METRICS.denied();
+            policyChain.failWith(
+                PolicyResult.failure(
+                    GEOIP_FILTERING_INVALID,
+                    HttpStatusCode.FORBIDDEN_403,
+                    "You're not allowed to access this resource",
+                    Maps
+                        .<String, Object>builder()
+                        .put("remote_address", request.remoteAddress())
+                        .put("country_iso_code", decision.getCountryIsoCode())
+                        .put("country_name", decision.getCountryName())
+                        .put("region_name", decision.getRegionName())
+                        .put("city_name", decision.getCityName())
+                        .put("timezone", decision.getTimezone())
+                        .build()
+                )
+            );
+        }
     }
 }
@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.cache;
+
+/**
+ * The key of a cache entry: a network, given by its IPv6 form as packed by
+ * {@link io.gravitee.policy.geoipfiltering.ip.IpAddress} and its prefix length, an address being a network of 128 bits.
+ *
+ * Keys are mutable, so that the lookups of a cache can reuse a single probe key, but keys are never changed once they
+ * have been put in a cache.
+ *
+ * @author GraviteeSource Team
+ */
+final class CacheKey {
+
+    private long high;
+
+    private long low;
+
+    private int prefixLength;
+
+    CacheKey() {}
+
+    CacheKey(long high, long low, int prefixLength) {
+        set(high, low, prefixLength);
+    }
+
+    CacheKey set(long high, long low, int prefixLength) {
+        this.high = prefixLength >= 64 ? high : prefixLength == 0 ? 0 : high & (-1L << (64 - prefixLength));
+        this.low = prefixLength >= 128 ? low : prefixLength <= 64 ? 0 : low & (-1L << (128 - prefixLength));
+        this.prefixLength = prefixLength;
+        return this;
+    }
+
+    long high() {
+        return high;
+    }
+
+    long low() {
+        return low;
+    }
+
+    int prefixLength() {
+        return prefixLength;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+
+        if (!(o instanceof CacheKey)) {
+            return false;
+        }
+
+        CacheKey other = (CacheKey) o;
+        return high == other.high && low == other.low && prefixLength == other.prefixLength;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) hash(high, low, prefixLength);
+    }
+
+    static long hash(long high, long low, int prefixLength) {
+        long hash = (high * 31 + low) * 31 + prefixLength;
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
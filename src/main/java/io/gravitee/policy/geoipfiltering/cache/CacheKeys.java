@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.cache;
+
+import io.gravitee.policy.geoipfiltering.configuration.CacheKeyMode;
+import io.gravitee.policy.geoipfiltering.ip.IpAddress;
+
+/**
+ * Derives the keys of the lookup cache from the remote addresses, as packed by {@link IpAddress}.
+ *
+ * With {@link CacheKeyMode#PREFIX}, an entry is keyed by the network of the configured prefix length the remote address
+ * belongs to, such as <code>192.0.2.0/24</code>. With {@link CacheKeyMode#NETWORK}, an entry is only keyed by network
+ * when the lookup reports that the address belongs to a network at least as large, in which case all the addresses of
+ * the network are known to share the same geo data. Otherwise, entries are keyed by remote address.
+ *
+ * @author GraviteeSource Team
+ */
+public final class CacheKeys {
+
+    public static final CacheKeys ADDRESS = new CacheKeys(CacheKeyMode.ADDRESS, 32, 128);
+
+    private static final int IPV4_MAPPED_PREFIX_LENGTH = 96;
+
+    private final CacheKeyMode mode;
+
+    private final int ipv4PrefixLength;
+
+    private final int ipv6PrefixLength;
+
+    public CacheKeys(CacheKeyMode mode, int ipv4PrefixLength, int ipv6PrefixLength) {
+        this.mode = mode == null ? CacheKeyMode.ADDRESS : mode;
+        this.ipv4PrefixLength = Math.max(0, Math.min(32, ipv4PrefixLength));
+        this.ipv6PrefixLength = Math.max(0, Math.min(128, ipv6PrefixLength));
+    }
+
+    public CacheKeyMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Sets the given key to the network the given address belongs to.
+     *
+     * @return whether entries may be keyed by network, the key being left unchanged otherwise
+     */
+    boolean network(long high, long low, CacheKey key) {
+        if (mode == CacheKeyMode.ADDRESS) {
+            return false;
+        }
+
+        key.set(high, low, prefixLength(high, low));
+        return true;
+    }
+
+    /**
+     * Sets the given key to the one of the entry looked up for the given address, in a network of the given prefix length
+     * (relative to the IPv4 address, for an IPv4 address), or a negative one if it is not known.
+     */
+    CacheKey key(long high, long low, int networkPrefixLength, CacheKey key) {
+        if (mode != CacheKeyMode.ADDRESS) {
+            boolean ipv4 = IpAddress.isIpv4(high, low);
+            int prefixLength = ipv4 ? ipv4PrefixLength : ipv6PrefixLength;
+
+            if (mode == CacheKeyMode.PREFIX || (networkPrefixLength >= 0 && networkPrefixLength <= prefixLength)) {
+                return key.set(high, low, ipv4 ? IPV4_MAPPED_PREFIX_LENGTH + prefixLength : prefixLength);
+            }
+        }
+
+        return key.set(high, low, 128);
+    }
+
+    private int prefixLength(long high, long low) {
+        return IpAddress.isIpv4(high, low) ? IPV4_MAPPED_PREFIX_LENGTH + ipv4PrefixLength : ipv6PrefixLength;
+    }
+}
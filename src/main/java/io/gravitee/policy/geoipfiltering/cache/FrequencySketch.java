@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.cache;
+
+/**
+ * A Count-Min sketch of 4 bits counters, estimating how often keys have been accessed recently.
+ *
+ * Each key is counted in 4 counters, its frequency being the minimum of them. Counters are all halved once the number of
+ * increments reaches 10 times the maximum size of the cache, so that the frequencies of the keys which are no longer
+ * accessed decay.
+ *
+ * @author GraviteeSource Team
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = { 0x97CB3127L, 0xAB31A9E1L, 0x2F0B61EDL, 0xC4CEB9FEL };
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+
+    private final int tableMask;
+
+    private final int sampleSize;
+
+    private int size;
+
+    FrequencySketch(int maximumSize) {
+        int length = Integer.highestOneBit(Math.max(16, Math.min(maximumSize, 1 << 26)) - 1) << 1;
+
+        this.table = new long[length];
+        this.tableMask = length - 1;
+        this.sampleSize = 10 * Math.max(1, maximumSize);
+    }
+
+    int frequency(long hash) {
+        int frequency = Integer.MAX_VALUE;
+
+        for (int i = 0; i < 4; i++) {
+            long counterHash = rehash(hash, i);
+            int count = (int) ((table[index(counterHash)] >>> offset(counterHash)) & 0xF);
+            frequency = Math.min(frequency, count);
+        }
+
+        return frequency;
+    }
+
+    void increment(long hash) {
+        boolean added = false;
+
+        for (int i = 0; i < 4; i++) {
+            long counterHash = rehash(hash, i);
+            int index = index(counterHash);
+            int offset = offset(counterHash);
+
+            if (((table[index] >>> offset) & 0xF) != 0xF) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+
+        if (added && ++size == sampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+
+        size /= 2;
+    }
+
+    private static long rehash(long hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        return h ^ (h >>> 29);
+    }
+
+    private int index(long counterHash) {
+        return (int) (counterHash >>> 32) & tableMask;
+    }
+
+    private static int offset(long counterHash) {
+        return ((int) counterHash & 0xF) << 2;
+    }
+}
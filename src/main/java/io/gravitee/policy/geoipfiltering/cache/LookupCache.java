@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.cache;
+
+/**
+ * A bounded cache of the values looked up for remote addresses, given in their packed form, see
+ * {@link io.gravitee.policy.geoipfiltering.ip.IpAddress}.
+ *
+ * Caches are not thread-safe: each instance is meant to be confined to a single event loop.
+ *
+ * @author GraviteeSource Team
+ */
+public interface LookupCache<V> {
+    /**
+     * Returns the value cached for the given address, or <code>null</code> if there is none or if it has expired.
+     *
+     * Expired entries are kept until they are replaced or evicted, so that they can still be served by
+     * {@link #getStale(long, long)}.
+     */
+    V get(long high, long low);
+
+    /**
+     * Returns the value cached for the given address even if it has expired, or <code>null</code> if there is none.
+     */
+    V getStale(long high, long low);
+
+    default void put(long high, long low, V value) {
+        put(high, low, -1, value);
+    }
+
+    /**
+     * Caches the value looked up for the given address, in a network of the given prefix length, or a negative one if it
+     * is not known.
+     */
+    void put(long high, long low, int networkPrefixLength, V value);
+
+    int size();
+
+    int getMaxEntries();
+
+    long getHits();
+
+    long getMisses();
+
+    long getEvictions();
+
+    /**
+     * Returns the ratio of the lookups which hit a live entry, or 0 if there has been no lookup yet.
+     */
+    default double getHitRatio() {
+        long lookups = getHits() + getMisses();
+        return lookups == 0 ? 0 : (double) getHits() / lookups;
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.cache;
+
+import io.gravitee.policy.geoipfiltering.configuration.CacheKeyMode;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded LRU cache keyed by remote address, or by network as derived by the given {@link CacheKeys}, used to keep the
+ * geo data replied by the geoip service or the decisions taken for a client. Addresses are looked up without allocating.
+ *
+ * @author GraviteeSource Team
+ */
+public class LruCache<V> implements LookupCache<V> {
+
+    private final int maxEntries;
+
+    private final long ttlNanos;
+
+    private final CacheKeys keys;
+
+    private final Map<CacheKey, Entry<V>> entries;
+
+    private final CacheKey probe = new CacheKey();
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    public LruCache(int maxEntries, long ttl, TimeUnit unit) {
+        this(maxEntries, ttl, unit, CacheKeys.ADDRESS);
+    }
+
+    public LruCache(int maxEntries, long ttl, TimeUnit unit, CacheKeys keys) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.keys = keys;
+        this.entries =
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<CacheKey, Entry<V>> eldest) {
+                    if (size() > LruCache.this.maxEntries) {
+                        evictions++;
+                        return true;
+                    }
+                    return false;
+                }
+            };
+    }
+
+    @Override
+    public V get(long high, long low) {
+        Entry<V> entry = find(high, low);
+
+        if (entry == null || isExpired(entry)) {
+            misses++;
+            return null;
+        }
+
+        hits++;
+        return entry.value;
+    }
+
+    @Override
+    public V getStale(long high, long low) {
+        Entry<V> entry = find(high, low);
+        return entry == null ? null : entry.value;
+    }
+
+    @Override
+    public void put(long high, long low, int networkPrefixLength, V value) {
+        entries.put(keys.key(high, low, networkPrefixLength, new CacheKey()), new Entry<>(value, System.nanoTime()));
+    }
+
+    @Override
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    @Override
+    public long getHits() {
+        return hits;
+    }
+
+    @Override
+    public long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions;
+    }
+
+    private Entry<V> find(long high, long low) {
+        if (!keys.network(high, low, probe)) {
+            return entries.get(probe.set(high, low, 128));
+        }
+
+        Entry<V> entry = entries.get(probe);
+
+        if (keys.getMode() == CacheKeyMode.NETWORK && (entry == null || isExpired(entry))) {
+            // The address may belong to a smaller network, whose entries are keyed by address
+            Entry<V> addressEntry = entries.get(probe.set(high, low, 128));
+
+            if (addressEntry != null) {
+                return addressEntry;
+            }
+        }
+
+        return entry;
+    }
+
+    private boolean isExpired(Entry<V> entry) {
+        return ttlNanos > 0 && System.nanoTime() - entry.createdAt >= ttlNanos;
+    }
+
+    private static final class Entry<V> {
+
+        private final V value;
+
+        private final long createdAt;
+
+        private Entry(V value, long createdAt) {
+            this.value = value;
+            this.createdAt = createdAt;
+        }
+    }
+}
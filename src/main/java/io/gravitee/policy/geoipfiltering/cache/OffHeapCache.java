@@ -0,0 +1,237 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.cache;
+
+import io.gravitee.policy.geoipfiltering.configuration.CacheKeyMode;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded cache kept out of the JVM heap, in an open addressing hash table, so that caching millions of entries does not
+ * put any pressure on the garbage collector.
+ *
+ * Each entry takes a fixed size slot of {@value #SLOT_SIZE} bytes: the packed network or address it is keyed by, its
+ * creation time, and its value, encoded to 16 bits by a {@link CompactCodec}. The table is allocated once, with a slot per
+ * entry, and entries are never removed: an entry is looked up in a window of {@value #PROBES} slots, from the slot its key
+ * hashes to, and a new entry replaces the oldest entry of its window once the window is full.
+ *
+ * Creation times are only kept to the second: the time to live is rounded up to whole seconds, and an entry expires up to
+ * a second after it, never before.
+ *
+ * @author GraviteeSource Team
+ */
+public final class OffHeapCache<V> implements LookupCache<V> {
+
+    static final int SLOT_SIZE = 24;
+
+    static final int PROBES = 8;
+
+    // Layout of a slot
+    private static final int HIGH = 0;
+    private static final int LOW = 8;
+    private static final int CREATED_AT = 16;
+    private static final int VALUE = 20;
+    private static final int PREFIX_LENGTH = 22;
+    private static final int FLAGS = 23;
+
+    private static final byte OCCUPIED = 1;
+
+    private final ByteBuffer slots;
+
+    private final int capacity;
+
+    private final CacheKeys keys;
+
+    private final CompactCodec<V> codec;
+
+    private final CacheKey probe = new CacheKey();
+
+    private final long epoch = System.nanoTime();
+
+    // Creation times are stored in seconds since the creation of this cache, the time to live rounded up to match
+    private final long ttlSeconds;
+
+    private int size;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    public OffHeapCache(int maxEntries, long ttl, TimeUnit unit, CacheKeys keys, CompactCodec<V> codec) {
+        this.capacity = Math.max(PROBES, Math.min(maxEntries, Integer.MAX_VALUE / SLOT_SIZE));
+        this.slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE).order(ByteOrder.nativeOrder());
+        this.ttlSeconds = ttlSeconds(ttl, unit);
+        this.keys = keys;
+        this.codec = codec;
+    }
+
+    @Override
+    public V get(long high, long low) {
+        int slot = find(high, low);
+
+        if (slot < 0 || isExpired(slot)) {
+            misses++;
+            return null;
+        }
+
+        hits++;
+        return codec.decode(slots.getShort(slot + VALUE));
+    }
+
+    @Override
+    public V getStale(long high, long low) {
+        int slot = find(high, low);
+        return slot < 0 ? null : codec.decode(slots.getShort(slot + VALUE));
+    }
+
+    @Override
+    public void put(long high, long low, int networkPrefixLength, V value) {
+        keys.key(high, low, networkPrefixLength, probe);
+
+        int start = index(probe.high(), probe.low(), probe.prefixLength());
+        int victim = -1;
+        int victimCreatedAt = Integer.MAX_VALUE;
+
+        for (int i = 0; i < PROBES; i++) {
+            int slot = ((start + i) % capacity) * SLOT_SIZE;
+
+            if (slots.get(slot + FLAGS) == 0) {
+                size++;
+                victim = slot;
+                break;
+            }
+
+            if (matches(slot, probe.high(), probe.low(), probe.prefixLength())) {
+                victim = slot;
+                break;
+            }
+
+            int createdAt = slots.getInt(slot + CREATED_AT);
+
+            if (createdAt < victimCreatedAt || victim < 0) {
+                victim = slot;
+                victimCreatedAt = createdAt;
+            }
+
+            if (i == PROBES - 1) {
+                evictions++;
+            }
+        }
+
+        slots.putLong(victim + HIGH, probe.high());
+        slots.putLong(victim + LOW, probe.low());
+        slots.putInt(victim + CREATED_AT, now());
+        slots.putShort(victim + VALUE, codec.encode(value));
+        slots.put(victim + PREFIX_LENGTH, (byte) probe.prefixLength());
+        slots.put(victim + FLAGS, OCCUPIED);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int getMaxEntries() {
+        return capacity;
+    }
+
+    @Override
+    public long getHits() {
+        return hits;
+    }
+
+    @Override
+    public long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the slot of the entry of the given address, or -1 if there is none.
+     */
+    private int find(long high, long low) {
+        if (!keys.network(high, low, probe)) {
+            return find(high, low, 128);
+        }
+
+        int slot = find(probe.high(), probe.low(), probe.prefixLength());
+
+        if (keys.getMode() == CacheKeyMode.NETWORK && (slot < 0 || isExpired(slot))) {
+            // The address may belong to a smaller network, whose entries are keyed by address
+            int addressSlot = find(high, low, 128);
+
+            if (addressSlot >= 0) {
+                return addressSlot;
+            }
+        }
+
+        return slot;
+    }
+
+    private int find(long high, long low, int prefixLength) {
+        int start = index(high, low, prefixLength);
+
+        for (int i = 0; i < PROBES; i++) {
+            int slot = ((start + i) % capacity) * SLOT_SIZE;
+
+            if (slots.get(slot + FLAGS) == 0) {
+                // Entries are never removed, so that an entry can not be past an empty slot of its window
+                return -1;
+            }
+
+            if (matches(slot, high, low, prefixLength)) {
+                return slot;
+            }
+        }
+
+        return -1;
+    }
+
+    private boolean matches(int slot, long high, long low, int prefixLength) {
+        return (
+            slots.getLong(slot + LOW) == low &&
+            slots.getLong(slot + HIGH) == high &&
+            (slots.get(slot + PREFIX_LENGTH) & 0xFF) == prefixLength
+        );
+    }
+
+    private int index(long high, long low, int prefixLength) {
+        return (int) (((CacheKey.hash(high, low, prefixLength) >>> 32) * capacity) >>> 32);
+    }
+
+    private boolean isExpired(int slot) {
+        // The creation time is truncated to the second, an entry has then lived at least the time to live once a whole
+        // second more has elapsed
+        return ttlSeconds > 0 && now() - slots.getInt(slot + CREATED_AT) > ttlSeconds;
+    }
+
+    private static long ttlSeconds(long ttl, TimeUnit unit) {
+        long seconds = unit.toSeconds(ttl);
+        return unit.toNanos(ttl) > TimeUnit.SECONDS.toNanos(seconds) ? seconds + 1 : seconds;
+    }
+
+    private int now() {
+        return (int) TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - epoch);
+    }
+}
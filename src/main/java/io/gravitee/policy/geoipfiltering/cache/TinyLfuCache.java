@@ -0,0 +1,235 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.cache;
+
+import io.gravitee.policy.geoipfiltering.configuration.CacheKeyMode;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded cache with a W-TinyLFU eviction policy, so that the clients seen only once, such as the scanners sweeping IP
+ * ranges, do not evict the clients seen often.
+ *
+ * New entries are first kept in a small LRU window, of 1% of the cache. The entry evicted from the window is then only
+ * admitted into the main cache if it has been accessed more often than the entry the main cache would evict, as estimated
+ * by a {@link FrequencySketch}. The main cache is a segmented LRU: entries are admitted into its probation segment, and
+ * promoted to its protected segment, of 80% of the main cache, when accessed again.
+ *
+ * @author GraviteeSource Team
+ */
+public class TinyLfuCache<V> implements LookupCache<V> {
+
+    private final int maxEntries;
+
+    private final int maxWindow;
+
+    private final int maxMain;
+
+    private final int maxProtected;
+
+    private final long ttlNanos;
+
+    private final CacheKeys keys;
+
+    private final FrequencySketch sketch;
+
+    private final Map<CacheKey, Entry<V>> window = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final Map<CacheKey, Entry<V>> probation = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final Map<CacheKey, Entry<V>> protect = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final CacheKey probe = new CacheKey();
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    public TinyLfuCache(int maxEntries, long ttl, TimeUnit unit, CacheKeys keys) {
+        this.maxEntries = Math.max(2, maxEntries);
+        this.maxWindow = Math.max(1, this.maxEntries / 100);
+        this.maxMain = this.maxEntries - maxWindow;
+        this.maxProtected = maxMain * 8 / 10;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.keys = keys;
+        this.sketch = new FrequencySketch(this.maxEntries);
+    }
+
+    @Override
+    public V get(long high, long low) {
+        Entry<V> entry = find(high, low);
+
+        if (entry == null || isExpired(entry)) {
+            misses++;
+            return null;
+        }
+
+        hits++;
+        return entry.value;
+    }
+
+    @Override
+    public V getStale(long high, long low) {
+        Entry<V> entry = find(high, low);
+        return entry == null ? null : entry.value;
+    }
+
+    @Override
+    public void put(long high, long low, int networkPrefixLength, V value) {
+        CacheKey key = keys.key(high, low, networkPrefixLength, new CacheKey());
+        Entry<V> entry = new Entry<>(value, System.nanoTime());
+
+        if (protect.containsKey(key)) {
+            protect.put(key, entry);
+        } else if (probation.containsKey(key)) {
+            probation.put(key, entry);
+        } else {
+            sketch.increment(CacheKey.hash(key.high(), key.low(), key.prefixLength()));
+            window.put(key, entry);
+
+            if (window.size() > maxWindow) {
+                evictFromWindow();
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return window.size() + probation.size() + protect.size();
+    }
+
+    @Override
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    @Override
+    public long getHits() {
+        return hits;
+    }
+
+    @Override
+    public long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions;
+    }
+
+    private Entry<V> find(long high, long low) {
+        if (!keys.network(high, low, probe)) {
+            return access(probe.set(high, low, 128));
+        }
+
+        Entry<V> entry = access(probe);
+
+        if (keys.getMode() == CacheKeyMode.NETWORK && (entry == null || isExpired(entry))) {
+            // The address may belong to a smaller network, whose entries are keyed by address
+            Entry<V> addressEntry = access(probe.set(high, low, 128));
+
+            if (addressEntry != null) {
+                return addressEntry;
+            }
+        }
+
+        return entry;
+    }
+
+    private Entry<V> access(CacheKey key) {
+        sketch.increment(CacheKey.hash(key.high(), key.low(), key.prefixLength()));
+
+        Entry<V> entry = window.get(key);
+
+        if (entry == null) {
+            entry = protect.get(key);
+        }
+
+        if (entry == null) {
+            entry = probation.remove(key);
+
+            if (entry != null) {
+                promote(key, entry);
+            }
+        }
+
+        return entry;
+    }
+
+    private void promote(CacheKey key, Entry<V> entry) {
+        // The key is the probe key, the one of the map entry is kept instead
+        CacheKey stored = new CacheKey(key.high(), key.low(), key.prefixLength());
+        protect.put(stored, entry);
+
+        if (protect.size() > maxProtected) {
+            Map.Entry<CacheKey, Entry<V>> demoted = removeEldest(protect);
+            probation.put(demoted.getKey(), demoted.getValue());
+        }
+    }
+
+    private void evictFromWindow() {
+        Map.Entry<CacheKey, Entry<V>> candidate = removeEldest(window);
+
+        if (probation.size() + protect.size() < maxMain) {
+            probation.put(candidate.getKey(), candidate.getValue());
+            return;
+        }
+
+        Map<CacheKey, Entry<V>> victims = probation.isEmpty() ? protect : probation;
+        CacheKey victim = victims.keySet().iterator().next();
+
+        evictions++;
+
+        if (frequency(candidate.getKey()) > frequency(victim)) {
+            victims.remove(victim);
+            probation.put(candidate.getKey(), candidate.getValue());
+        }
+    }
+
+    private int frequency(CacheKey key) {
+        return sketch.frequency(CacheKey.hash(key.high(), key.low(), key.prefixLength()));
+    }
+
+    private static <V> Map.Entry<CacheKey, Entry<V>> removeEldest(Map<CacheKey, Entry<V>> segment) {
+        Iterator<Map.Entry<CacheKey, Entry<V>>> iterator = segment.entrySet().iterator();
+        Map.Entry<CacheKey, Entry<V>> eldest = iterator.next();
+        Map.Entry<CacheKey, Entry<V>> removed = Map.entry(eldest.getKey(), eldest.getValue());
+
+        iterator.remove();
+        return removed;
+    }
+
+    private boolean isExpired(Entry<V> entry) {
+        return ttlNanos > 0 && System.nanoTime() - entry.createdAt >= ttlNanos;
+    }
+
+    private static final class Entry<V> {
+
+        private final V value;
+
+        private final long createdAt;
+
+        private Entry(V value, long createdAt) {
+            this.value = value;
+            this.createdAt = createdAt;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.configuration;
+
+/**
+ * @author GraviteeSource Team
+ */
+public class CacheConfiguration {
+
+    private boolean enabled = false;
+
+    private CacheType type = CacheType.HEAP;
+
+    private CacheEviction eviction = CacheEviction.LRU;
+
+    private int maxEntries = 10000;
+
+    private long ttl = 3600;
+
+    private boolean decisions = false;
+
+    private boolean staleWhileRevalidate = false;
+
+    private CacheKeyMode key = CacheKeyMode.ADDRESS;
+
+    private int ipv4PrefixLength = 24;
+
+    private int ipv6PrefixLength = 48;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public CacheType getType() {
+        return type;
+    }
+
+    public void setType(CacheType type) {
+        this.type = type;
+    }
+
+    public CacheEviction getEviction() {
+        return eviction;
+    }
+
+    public void setEviction(CacheEviction eviction) {
+        this.eviction = eviction;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+    public boolean isDecisions() {
+        return decisions;
+    }
+
+    public void setDecisions(boolean decisions) {
+        this.decisions = decisions;
+    }
+
+    public boolean isStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    public void setStaleWhileRevalidate(boolean staleWhileRevalidate) {
+        this.staleWhileRevalidate = staleWhileRevalidate;
+    }
+
+    public CacheKeyMode getKey() {
+        return key;
+    }
+
+    public void setKey(CacheKeyMode key) {
+        this.key = key;
+    }
+
+    public int getIpv4PrefixLength() {
+        return ipv4PrefixLength;
+    }
+
+    public void setIpv4PrefixLength(int ipv4PrefixLength) {
+        this.ipv4PrefixLength = ipv4PrefixLength;
+    }
+
+    public int getIpv6PrefixLength() {
+        return ipv6PrefixLength;
+    }
+
+    public void setIpv6PrefixLength(int ipv6PrefixLength) {
+        this.ipv6PrefixLength = ipv6PrefixLength;
+    }
+}
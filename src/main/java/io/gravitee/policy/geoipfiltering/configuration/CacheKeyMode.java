@@ -0,0 +1,39 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.configuration;
+
+/**
+ * How the entries of the lookup cache are keyed.
+ *
+ * @author GraviteeSource Team
+ */
+public enum CacheKeyMode {
+    /**
+     * By remote address.
+     */
+    ADDRESS,
+
+    /**
+     * By network of the configured prefix length, so that a single lookup serves all the addresses of the network.
+     */
+    PREFIX,
+
+    /**
+     * By network of the configured prefix length, when the lookup reports that the whole network shares the same geo data,
+     * and by remote address otherwise.
+     */
+    NETWORK,
+}
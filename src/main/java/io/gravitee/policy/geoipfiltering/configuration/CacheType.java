@@ -0,0 +1,33 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.configuration;
+
+/**
+ * Where the lookup cache is kept.
+ *
+ * @author GraviteeSource Team
+ */
+public enum CacheType {
+    /**
+     * In the JVM heap, along with the geo data replied by the geoip service.
+     */
+    HEAP,
+
+    /**
+     * Out of the JVM heap, only keeping the decision taken for each client, when decisions are cached.
+     */
+    OFF_HEAP,
+}
@@ -28,6 +28,16 @@ public class GeoIPFilteringPolicyConfiguration implements PolicyConfiguration {
 
     private List<Rule> whitelistRules;
 
+    private boolean ruleMetrics;
+
+    private boolean adaptiveRuleOrder;
+
+    private CacheConfiguration cache = new CacheConfiguration();
+
+    private LookupConfiguration lookup = new LookupConfiguration();
+
+    private CircuitBreakerConfiguration circuitBreaker = new CircuitBreakerConfiguration();
+
     public boolean isFailOnUnknown() {
         return failOnUnknown;
     }
@@ -43,4 +53,44 @@ public class GeoIPFilteringPolicyConfiguration implements PolicyConfiguration {
     public void setWhitelistRules(List<Rule> whitelistRules) {
         this.whitelistRules = whitelistRules;
     }
+
+    public boolean isRuleMetrics() {
+        return ruleMetrics;
+    }
+
+    public void setRuleMetrics(boolean ruleMetrics) {
+        this.ruleMetrics = ruleMetrics;
+    }
+
+    public boolean isAdaptiveRuleOrder() {
+        return adaptiveRuleOrder;
+    }
+
+    public void setAdaptiveRuleOrder(boolean adaptiveRuleOrder) {
+        this.adaptiveRuleOrder = adaptiveRuleOrder;
+    }
+
+    public CacheConfiguration getCache() {
+        return cache;
+    }
+
+    public void setCache(CacheConfiguration cache) {
+        this.cache = cache;
+    }
+
+    public LookupConfiguration getLookup() {
+        return lookup;
+    }
+
+    public void setLookup(LookupConfiguration lookup) {
+        this.lookup = lookup;
+    }
+
+    public CircuitBreakerConfiguration getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public void setCircuitBreaker(CircuitBreakerConfiguration circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
 }
@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.configuration;
+
+/**
+ * What to do with a request when the lookup of its remote address times out.
+ *
+ * @author GraviteeSource Team
+ */
+public enum TimeoutAction {
+    /**
+     * Let the request go through.
+     */
+    ALLOW,
+
+    /**
+     * Reject the request.
+     */
+    DENY,
+
+    /**
+     * Filter the request on the expired geo data cached for its remote address, if any, or handle it as unknown otherwise.
+     */
+    STALE,
+}
@@ -0,0 +1,309 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.ip;
+
+/**
+ * An IP address, parsed from its textual form and packed in two longs, without allocating.
+ *
+ * Both IPv4 and IPv6 addresses are packed as 128 bits IPv6 addresses, IPv4 addresses being mapped to
+ * <code>::ffff:0:0/96</code>. IPv4-mapped IPv6 addresses are thus the same as the IPv4 addresses they map.
+ *
+ * Instances are mutable, so that one can be reused by all the requests of an event loop, and are not thread-safe.
+ *
+ * @author GraviteeSource Team
+ */
+public final class IpAddress {
+
+    private static final long IPV4_MAPPED = 0xFFFF00000000L;
+
+    private long high;
+
+    private long low;
+
+    /**
+     * Parses a textual IP address: a dotted-decimal IPv4 address, or an IPv6 address, possibly enclosed in brackets,
+     * with a zone ID, or ending with a dotted-decimal IPv4 address. Host names are not resolved.
+     *
+     * @return whether the text is an IP address, this address being left unchanged otherwise
+     */
+    public boolean parse(CharSequence text) {
+        if (text == null) {
+            return false;
+        }
+
+        int start = 0;
+        int end = text.length();
+        boolean bracketed = end >= 2 && text.charAt(0) == '[' && text.charAt(end - 1) == ']';
+
+        if (bracketed) {
+            start++;
+            end--;
+        }
+
+        int colons = 0;
+        boolean zoned = false;
+
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+
+            if (c == ':') {
+                colons++;
+            } else if (c == '%' && colons > 0) {
+                if (!isZoneId(text, i + 1, end)) {
+                    return false;
+                }
+
+                // The zone ID of a link-local IPv6 address does not identify the address
+                zoned = true;
+                end = i;
+                break;
+            }
+        }
+
+        if (colons == 0) {
+            long ipv4 = bracketed ? -1 : parseIpv4(text, start, end);
+
+            if (ipv4 < 0) {
+                return false;
+            }
+
+            this.high = 0;
+            this.low = IPV4_MAPPED | ipv4;
+            return true;
+        }
+
+        return parseIpv6(text, start, end, zoned);
+    }
+
+    public boolean isIpv4() {
+        return isIpv4(high, low);
+    }
+
+    /**
+     * Returns the IPv4 address packed in an int, only meaningful if this is an IPv4 address.
+     */
+    public int ipv4() {
+        return (int) low;
+    }
+
+    /**
+     * Returns the 64 most significant bits of the IPv6 form of this address.
+     */
+    public long high() {
+        return high;
+    }
+
+    /**
+     * Returns the 64 least significant bits of the IPv6 form of this address.
+     */
+    public long low() {
+        return low;
+    }
+
+    /**
+     * Returns whether the given IPv6 form is the one of an IPv4 address.
+     */
+    public static boolean isIpv4(long high, long low) {
+        return high == 0 && (low >>> 32) == (IPV4_MAPPED >>> 32);
+    }
+
+    private boolean parseIpv6(CharSequence text, int start, int end, boolean zoned) {
+        long high = 0;
+        long low = 0;
+        int groups = 0;
+        int compressed = -1;
+        int i = start;
+
+        if (end - start >= 2 && text.charAt(start) == ':' && text.charAt(start + 1) == ':') {
+            compressed = 0;
+            i += 2;
+        }
+
+        while (i < end) {
+            int groupEnd = i;
+            int value = 0;
+
+            while (groupEnd < end && groupEnd - i < 5) {
+                int digit = hexDigit(text.charAt(groupEnd));
+
+                if (digit < 0) {
+                    break;
+                }
+
+                value = (value << 4) | digit;
+                groupEnd++;
+            }
+
+            int count = 1;
+
+            if (groupEnd < end && text.charAt(groupEnd) == '.') {
+                // A trailing dotted-decimal IPv4 address, as the two last groups
+                long ipv4 = groups <= 6 ? parseIpv4(text, i, end) : -1;
+
+                if (ipv4 < 0) {
+                    return false;
+                }
+
+                value = (int) ipv4;
+                count = 2;
+                groupEnd = end;
+            } else if (groupEnd == i || groupEnd - i > 4 || groups == 8) {
+                return false;
+            }
+
+            for (int g = count - 1; g >= 0; g--, groups++) {
+                long group = (value >>> (16 * g)) & 0xFFFF;
+
+                if (groups < 4) {
+                    high |= group << (16 * (3 - groups));
+                } else {
+                    low |= group << (16 * (7 - groups));
+                }
+            }
+
+            i = groupEnd;
+
+            if (i == end) {
+                break;
+            }
+
+            if (text.charAt(i) != ':' || ++i == end) {
+                return false;
+            }
+
+            if (text.charAt(i) == ':') {
+                if (compressed >= 0) {
+                    return false;
+                }
+
+                compressed = groups;
+                i++;
+            }
+        }
+
+        if (compressed < 0 ? groups != 8 : groups > 7) {
+            return false;
+        }
+
+        if (compressed >= 0 && groups > compressed) {
+            // Moves the groups following "::" to the end of the address, by shifting them right over 128 bits
+            int shift = 16 * (8 - groups);
+            long tailHigh = compressed >= 4 ? 0 : high & (-1L >>> (16 * compressed));
+            long tailLow = compressed <= 4 ? low : low & (-1L >>> (16 * (compressed - 4)));
+
+            high &= compressed == 0 ? 0 : compressed >= 4 ? -1L : -1L << (16 * (4 - compressed));
+            low &= compressed <= 4 ? 0 : -1L << (16 * (8 - compressed));
+
+            if (shift >= 64) {
+                tailLow = tailHigh >>> (shift - 64);
+                tailHigh = 0;
+            } else {
+                tailLow = (tailLow >>> shift) | (tailHigh << (64 - shift));
+                tailHigh >>>= shift;
+            }
+
+            high |= tailHigh;
+            low |= tailLow;
+        }
+
+        if (zoned && isIpv4(high, low)) {
+            // IPv4 addresses have no zone
+            return false;
+        }
+
+        this.high = high;
+        this.low = low;
+        return true;
+    }
+
+    /**
+     * Parses a strict dotted-decimal IPv4 address, without leading zeros.
+     *
+     * @return the address as an unsigned int, or -1 if it is not an IPv4 address
+     */
+    private static long parseIpv4(CharSequence text, int start, int end) {
+        long address = 0;
+        int i = start;
+
+        for (int octets = 0; octets < 4; octets++) {
+            if (octets > 0) {
+                if (i == end || text.charAt(i) != '.') {
+                    return -1;
+                }
+
+                i++;
+            }
+
+            int octetEnd = i;
+            int value = 0;
+
+            while (octetEnd < end && octetEnd - i < 4 && text.charAt(octetEnd) >= '0' && text.charAt(octetEnd) <= '9') {
+                value = value * 10 + (text.charAt(octetEnd) - '0');
+                octetEnd++;
+            }
+
+            int digits = octetEnd - i;
+
+            if (digits == 0 || digits > 3 || value > 255 || (digits > 1 && text.charAt(i) == '0')) {
+                return -1;
+            }
+
+            address = (address << 8) | value;
+            i = octetEnd;
+        }
+
+        return i == end ? address : -1;
+    }
+
+    /**
+     * Returns whether the given text is a zone ID, made of the unreserved characters of RFC 3986.
+     */
+    private static boolean isZoneId(CharSequence text, int start, int end) {
+        if (start == end) {
+            return false;
+        }
+
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+
+            if (
+                !(c >= 'a' && c <= 'z') &&
+                !(c >= 'A' && c <= 'Z') &&
+                !(c >= '0' && c <= '9') &&
+                c != '-' &&
+                c != '.' &&
+                c != '_' &&
+                c != '~'
+            ) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.lookup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A circuit breaker around the geoip service, shared by all the event loops.
+ *
+ * The circuit opens after a number of consecutive lookups did not get any reply, because they timed out or because the
+ * geoip service is not deployed. While it is open, lookups are rejected without sending any message. Once the reset
+ * timeout has elapsed, the circuit is half-open: a single lookup is let through as a probe, and the next one only after
+ * another reset timeout, until a lookup gets a reply and closes the circuit.
+ *
+ * @author GraviteeSource Team
+ */
+public final class CircuitBreaker {
+
+    private final int failureThreshold;
+
+    private final long resetTimeoutNanos;
+
+    private final AtomicInteger failures = new AtomicInteger();
+
+    // The time after which the next probe may be sent, as given by System.nanoTime()
+    private final AtomicLong retryAt = new AtomicLong();
+
+    public CircuitBreaker(int failureThreshold, long resetTimeout, TimeUnit unit) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.resetTimeoutNanos = unit.toNanos(resetTimeout);
+    }
+
+    /**
+     * Returns whether a lookup may be sent to the geoip service.
+     */
+    public boolean tryAcquire() {
+        if (failures.get() < failureThreshold) {
+            return true;
+        }
+
+        long at = retryAt.get();
+        long now = System.nanoTime();
+
+        return now - at >= 0 && retryAt.compareAndSet(at, now + resetTimeoutNanos);
+    }
+
+    public void onSuccess() {
+        if (failures.get() != 0) {
+            failures.set(0);
+        }
+    }
+
+    public void onFailure() {
+        int count;
+
+        do {
+            count = failures.get();
+
+            if (count >= failureThreshold) {
+                return;
+            }
+        } while (!failures.compareAndSet(count, count + 1));
+
+        if (count + 1 == failureThreshold) {
+            retryAt.set(System.nanoTime() + resetTimeoutNanos);
+        }
+    }
+
+    public boolean isOpen() {
+        return failures.get() >= failureThreshold;
+    }
+}
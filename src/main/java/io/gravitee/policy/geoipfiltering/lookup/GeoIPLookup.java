@@ -0,0 +1,430 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.lookup;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.eventbus.ReplyException;
+import io.vertx.core.eventbus.ReplyFailure;
+import io.vertx.core.json.JsonArray;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looks up the geo data of IP addresses from the geoip service, over the event bus.
+ *
+ * The geoip service replies with a JSON object, decoded once into a {@link GeoRecord} for the policy to only deal with
+ * records. A replier loaded along with the policy may also reply with records directly, passed by reference.
+ *
+ * Concurrent lookups of the same address from an event loop are coalesced: while a lookup is in flight, later ones attach
+ * to its pending result instead of sending a new message. Bursts of requests from a single client then cost a single
+ * round trip to the geoip service. Lookups are tracked per event loop, since replies are handled on the event loop which
+ * sent the request, so that no locking is needed. Only lookups sent with the same timeout and locality are coalesced, so
+ * that a lookup never waits longer than its own timeout, and the outcome of a coalesced lookup is only recorded by the
+ * circuit breaker of the first one.
+ *
+ * A lookup sent with local-only delivery options, so as not to be routed to another node of a clustered gateway, falls
+ * back to the cluster when no geoip service is registered on this node. This is remembered per event loop, so that
+ * later lookups are directly sent to the cluster, but only for {@value #PROBE_INTERVAL_MILLIS} ms: the next lookup then
+ * probes this node again, for a geoip service deployed after the first lookups to be used as soon as it is there.
+ * A failed probe only costs a local round trip.
+ *
+ * Lookups may also be gathered into a {@link LookupBatch}, sent to the batch address of the geoip service as an array of
+ * addresses, to be replied with an array of geo data in the same order, <code>null</code> for an address without any. The
+ * outcome of a batch is recorded once by the circuit breaker of its configuration. When the geoip service does not
+ * handle batches, they are split back into single lookups, which is remembered per event loop as well, and probed again
+ * after the same interval.
+ *
+ * @author GraviteeSource Team
+ */
+public final class GeoIPLookup {
+
+    public static final String GEOIP_SERVICE = "service:geoip";
+
+    public static final String GEOIP_BATCH_SERVICE = "service:geoip:batch";
+
+    private static final ReplyException NO_GEO_DATA = new ReplyException(ReplyFailure.RECIPIENT_FAILURE, "No geo data for the address");
+
+    static final long PROBE_INTERVAL_MILLIS = 1000;
+
+    private static final ThreadLocal<GeoIPLookup> LOOKUPS = ThreadLocal.withInitial(GeoIPLookup::new);
+
+    private final Map<String, Pending> pendings = new HashMap<>();
+
+    private boolean noLocalService;
+
+    // The time after which local-only lookups probe this node again, as given by System.nanoTime()
+    private long localProbeAt;
+
+    private boolean noBatchService;
+
+    // The time after which lookups are gathered into batches again, as given by System.nanoTime()
+    private long batchProbeAt;
+
+    private DeliveryOptions localOnly;
+
+    private DeliveryOptions clustered;
+
+    private GeoIPLookup() {}
+
+    /**
+     * Looks up the given address, with the given delivery options or the event bus defaults if they are <code>null</code>.
+     * The lookup fails with a {@link CircuitBreakerOpenException} if the given circuit breaker, when any, is open, unless
+     * it attaches to a lookup already in flight. It is gathered into the given batch, when any, if it is made from the
+     * event loop of the batch.
+     */
+    public static void lookup(
+        Vertx vertx,
+        String address,
+        DeliveryOptions options,
+        CircuitBreaker circuitBreaker,
+        LookupBatch batch,
+        Handler<AsyncResult<GeoRecord>> handler
+    ) {
+        if (Context.isOnEventLoopThread()) {
+            LOOKUPS.get().coalesce(vertx, address, options, circuitBreaker, batch, handler);
+        } else if (acquire(circuitBreaker, handler)) {
+            send(null, vertx, address, options, circuitBreaker, handler);
+        }
+    }
+
+    /**
+     * Looks up the given address in the background, to refresh its cached geo data, unless it is already being looked up
+     * from the current event loop.
+     */
+    public static void refresh(
+        Vertx vertx,
+        String address,
+        DeliveryOptions options,
+        CircuitBreaker circuitBreaker,
+        LookupBatch batch,
+        Handler<AsyncResult<GeoRecord>> handler
+    ) {
+        if (!Context.isOnEventLoopThread() || LOOKUPS.get().pending(address, options) == null) {
+            lookup(vertx, address, options, circuitBreaker, batch, handler);
+        }
+    }
+
+    /**
+     * Returns whether a lookup failed because the geoip service did not reply in time.
+     */
+    public static boolean isTimeout(Throwable failure) {
+        return failure instanceof ReplyException && ((ReplyException) failure).failureType() == ReplyFailure.TIMEOUT;
+    }
+
+    /**
+     * Returns whether a lookup failed because the geoip service is not deployed.
+     */
+    public static boolean isNoService(Throwable failure) {
+        return failure instanceof ReplyException && ((ReplyException) failure).failureType() == ReplyFailure.NO_HANDLERS;
+    }
+
+    /**
+     * Returns whether a lookup was rejected because the circuit breaker of the geoip service is open.
+     */
+    public static boolean isCircuitOpen(Throwable failure) {
+        return failure == CircuitBreakerOpenException.INSTANCE;
+    }
+
+    /**
+     * Returns the number of distinct addresses being looked up from the current event loop.
+     */
+    public static int inFlight() {
+        return LOOKUPS.get().pendings.size();
+    }
+
+    private void coalesce(
+        Vertx vertx,
+        String address,
+        DeliveryOptions options,
+        CircuitBreaker circuitBreaker,
+        LookupBatch batch,
+        Handler<AsyncResult<GeoRecord>> handler
+    ) {
+        Pending pending = pending(address, options);
+
+        if (pending != null) {
+            pending.attach(handler);
+            return;
+        }
+
+        // Only a lookup actually sent may be the probe of a half-open circuit breaker
+        if (!acquire(circuitBreaker, handler)) {
+            return;
+        }
+
+        // Lookups of the same address with other delivery options are chained, the first one being kept in the map
+        Pending created = new Pending(options, handler, pendings.get(address));
+        pendings.put(address, created);
+
+        Handler<AsyncResult<GeoRecord>> completion = result -> {
+            remove(address, created);
+            created.complete(result);
+        };
+
+        if (batch != null && batchService()) {
+            batch.add(this, vertx, address, options, circuitBreaker, completion);
+        } else {
+            send(this, vertx, address, options, circuitBreaker, completion);
+        }
+    }
+
+    /**
+     * Returns whether a lookup may be sent through the given circuit breaker, failing it otherwise.
+     */
+    private static boolean acquire(CircuitBreaker circuitBreaker, Handler<AsyncResult<GeoRecord>> handler) {
+        if (circuitBreaker != null && !circuitBreaker.tryAcquire()) {
+            handler.handle(Future.failedFuture(CircuitBreakerOpenException.INSTANCE));
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the lookup of the given address in flight from this event loop with delivery options equivalent to the
+     * given ones, or <code>null</code> if there is none.
+     */
+    private Pending pending(String address, DeliveryOptions options) {
+        for (Pending pending = pendings.get(address); pending != null; pending = pending.next) {
+            if (equivalent(pending.options, options)) {
+                return pending;
+            }
+        }
+
+        return null;
+    }
+
+    private void remove(String address, Pending completed) {
+        Pending first = pendings.get(address);
+
+        if (first == completed) {
+            if (completed.next == null) {
+                pendings.remove(address);
+            } else {
+                pendings.put(address, completed.next);
+            }
+            return;
+        }
+
+        for (Pending pending = first; pending != null; pending = pending.next) {
+            if (pending.next == completed) {
+                pending.next = completed.next;
+                return;
+            }
+        }
+    }
+
+    private static boolean equivalent(DeliveryOptions options, DeliveryOptions other) {
+        if (options == other) {
+            return true;
+        }
+
+        return timeout(options) == timeout(other) && localOnly(options) == localOnly(other);
+    }
+
+    private static long timeout(DeliveryOptions options) {
+        return options != null ? options.getSendTimeout() : DeliveryOptions.DEFAULT_TIMEOUT;
+    }
+
+    private static boolean localOnly(DeliveryOptions options) {
+        return options != null && options.isLocalOnly();
+    }
+
+    void sendBatch(
+        Vertx vertx,
+        JsonArray addresses,
+        List<Handler<AsyncResult<GeoRecord>>> handlers,
+        DeliveryOptions options,
+        CircuitBreaker circuitBreaker
+    ) {
+        DeliveryOptions delivery = delivery(options);
+
+        Handler<AsyncResult<Message<Object>>> replyHandler = message -> {
+            if (isNoHandlers(message)) {
+                // The geoip service does not handle batches, or is not deployed on this node
+                noBatchService = true;
+                batchProbeAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PROBE_INTERVAL_MILLIS);
+
+                for (int i = 0; i < addresses.size(); i++) {
+                    send(this, vertx, addresses.getString(i), options, circuitBreaker, handlers.get(i));
+                }
+                return;
+            }
+
+            if (circuitBreaker != null) {
+                record(circuitBreaker, message);
+            }
+
+            if (message.failed()) {
+                AsyncResult<GeoRecord> failure = Future.failedFuture(message.cause());
+
+                for (Handler<AsyncResult<GeoRecord>> handler : handlers) {
+                    handler.handle(failure);
+                }
+                return;
+            }
+
+            Object body = message.result().body();
+            JsonArray replies = body instanceof JsonArray ? (JsonArray) body : null;
+
+            for (int i = 0; i < handlers.size(); i++) {
+                GeoRecord record = replies != null && i < replies.size() ? GeoRecord.of(replies.getValue(i)) : null;
+                handlers.get(i).handle(record != null ? Future.succeededFuture(record) : Future.failedFuture(NO_GEO_DATA));
+            }
+        };
+
+        if (delivery == null) {
+            vertx.eventBus().request(GEOIP_BATCH_SERVICE, addresses, replyHandler);
+        } else {
+            vertx.eventBus().request(GEOIP_BATCH_SERVICE, addresses, delivery, replyHandler);
+        }
+    }
+
+    private static void send(
+        GeoIPLookup lookups,
+        Vertx vertx,
+        String address,
+        DeliveryOptions options,
+        CircuitBreaker circuitBreaker,
+        Handler<AsyncResult<GeoRecord>> handler
+    ) {
+        DeliveryOptions delivery = lookups != null ? lookups.delivery(options) : options;
+
+        Handler<AsyncResult<Message<Object>>> replyHandler = message -> {
+            if (delivery != null && delivery.isLocalOnly() && isNoHandlers(message)) {
+                DeliveryOptions clustered = lookups != null
+                    ? lookups.fallback(delivery)
+                    : new DeliveryOptions(delivery).setLocalOnly(false);
+                send(null, vertx, address, clustered, circuitBreaker, handler);
+                return;
+            }
+
+            if (circuitBreaker != null) {
+                record(circuitBreaker, message);
+            }
+
+            handler.handle(message.map(reply -> GeoRecord.of(reply.body())));
+        };
+
+        if (delivery == null) {
+            vertx.eventBus().request(GEOIP_SERVICE, address, replyHandler);
+        } else {
+            vertx.eventBus().request(GEOIP_SERVICE, address, delivery, replyHandler);
+        }
+    }
+
+    private static boolean isNoHandlers(AsyncResult<Message<Object>> message) {
+        return message.failed() && isNoService(message.cause());
+    }
+
+    /**
+     * Returns the options to send a lookup with: the given ones, or a clustered copy of them if they are local-only and no
+     * geoip service was found on this node lately.
+     */
+    private DeliveryOptions delivery(DeliveryOptions options) {
+        if (!noLocalService || options == null || !options.isLocalOnly()) {
+            return options;
+        }
+
+        if (System.nanoTime() - localProbeAt >= 0) {
+            noLocalService = false;
+            return options;
+        }
+
+        if (options != localOnly) {
+            localOnly = options;
+            clustered = new DeliveryOptions(options).setLocalOnly(false);
+        }
+
+        return clustered;
+    }
+
+    /**
+     * Returns whether lookups may be gathered into batches, that is unless the geoip service did not handle one lately.
+     */
+    private boolean batchService() {
+        if (noBatchService && System.nanoTime() - batchProbeAt >= 0) {
+            noBatchService = false;
+        }
+
+        return !noBatchService;
+    }
+
+    private DeliveryOptions fallback(DeliveryOptions options) {
+        noLocalService = true;
+        localProbeAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PROBE_INTERVAL_MILLIS);
+        return delivery(options);
+    }
+
+    private static void record(CircuitBreaker circuitBreaker, AsyncResult<Message<Object>> message) {
+        // A failure replied by the geoip service, such as an unknown address, still shows that it is up
+        if (message.failed() && message.cause() instanceof ReplyException) {
+            ReplyFailure failure = ((ReplyException) message.cause()).failureType();
+
+            if (failure == ReplyFailure.TIMEOUT || failure == ReplyFailure.NO_HANDLERS) {
+                circuitBreaker.onFailure();
+                return;
+            }
+        }
+
+        circuitBreaker.onSuccess();
+    }
+
+    private static final class Pending {
+
+        private final DeliveryOptions options;
+
+        private final Handler<AsyncResult<GeoRecord>> first;
+
+        private List<Handler<AsyncResult<GeoRecord>>> others;
+
+        // The next lookup of the same address, with other delivery options
+        private Pending next;
+
+        private Pending(DeliveryOptions options, Handler<AsyncResult<GeoRecord>> first, Pending next) {
+            this.options = options;
+            this.first = first;
+            this.next = next;
+        }
+
+        private void attach(Handler<AsyncResult<GeoRecord>> handler) {
+            if (others == null) {
+                others = new ArrayList<>(4);
+            }
+
+            others.add(handler);
+        }
+
+        private void complete(AsyncResult<GeoRecord> result) {
+            first.handle(result);
+
+            if (others != null) {
+                for (Handler<AsyncResult<GeoRecord>> handler : others) {
+                    handler.handle(result);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.lookup;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * The geo data of an IP address, as replied by the geoip service.
+ *
+ * Records are immutable, and shared by the caches of the event loops. They are decoded from the JSON replies of the
+ * geoip service, or passed by reference over the event bus by a replier loaded along with the policy, see
+ * {@link GeoRecordCodec}.
+ *
+ * @author GraviteeSource Team
+ */
+public final class GeoRecord {
+
+    private final String countryIsoCode;
+
+    private final String countryName;
+
+    private final String regionName;
+
+    private final String cityName;
+
+    private final String timezone;
+
+    private final double latitude;
+
+    private final double longitude;
+
+    private final int country;
+
+    /**
+     * Creates a record, an unknown location being given as {@link Double#NaN}.
+     */
+    public GeoRecord(
+        String countryIsoCode,
+        String countryName,
+        String regionName,
+        String cityName,
+        String timezone,
+        double latitude,
+        double longitude
+    ) {
+        this.countryIsoCode = countryIsoCode;
+        this.countryName = countryName;
+        this.regionName = regionName;
+        this.cityName = cityName;
+        this.timezone = timezone;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.country =
+            countryIsoCode != null && countryIsoCode.length() == 2 ? (countryIsoCode.charAt(0) << 16) | countryIsoCode.charAt(1) : -1;
+    }
+
+    /**
+     * Returns the record of a reply of the geoip service, either a record or, from older versions of the service, a
+     * {@link JsonObject}, or <code>null</code> if it is none of them.
+     */
+    public static GeoRecord of(Object reply) {
+        if (reply instanceof GeoRecord) {
+            return (GeoRecord) reply;
+        }
+
+        if (reply instanceof JsonObject) {
+            return fromJson((JsonObject) reply);
+        }
+
+        return null;
+    }
+
+    public static GeoRecord fromJson(JsonObject geoData) {
+        Double latitude = geoData.getDouble("lat");
+        Double longitude = geoData.getDouble("lon");
+
+        return new GeoRecord(
+            geoData.getString("country_iso_code"),
+            geoData.getString("country_name"),
+            geoData.getString("region_name"),
+            geoData.getString("city_name"),
+            geoData.getString("timezone"),
+            latitude == null ? Double.NaN : latitude,
+            longitude == null ? Double.NaN : longitude
+        );
+    }
+
+    public String getCountryIsoCode() {
+        return countryIsoCode;
+    }
+
+    public String getCountryName() {
+        return countryName;
+    }
+
+    public String getRegionName() {
+        return regionName;
+    }
+
+    public String getCityName() {
+        return cityName;
+    }
+
+    public String getTimezone() {
+        return timezone;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    /**
+     * Returns the country code packed with its first char in the upper 16 bits and its second char in the lower ones, or
+     * -1 if it is not a two chars code.
+     */
+    public int getCountry() {
+        return country;
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.lookup;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.MessageCodec;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Passes {@link GeoRecord}s over the event bus by reference, records being immutable. Records are not meant to leave the
+ * gateway, so that this codec does not support clustered delivery.
+ *
+ * Only a replier sending records needs to register it, the policy itself only receives them. Records being classes of
+ * the policy plugin, such a replier must be loaded along with the policy, as the stand-in geoip service of the tests.
+ * The geoip service of the gateway, another plugin, does not know about records and keeps replying with JSON objects.
+ *
+ * @author GraviteeSource Team
+ */
+public final class GeoRecordCodec implements MessageCodec<GeoRecord, GeoRecord> {
+
+    public static final String NAME = "geoip-record";
+
+    // The Vert.x instances this codec is registered on, weakly referenced so as not to keep a closed one
+    private static final Map<Vertx, Boolean> REGISTERED = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * Registers this codec as the default one of {@link GeoRecord}s, once per Vert.x instance.
+     */
+    public static void register(Vertx vertx) {
+        REGISTERED.computeIfAbsent(
+            vertx,
+            v -> {
+                try {
+                    v.eventBus().registerDefaultCodec(GeoRecord.class, new GeoRecordCodec());
+                } catch (IllegalStateException ise) {
+                    // Already registered, by a previous deployment of the policy or by the geoip service
+                }
+
+                return Boolean.TRUE;
+            }
+        );
+    }
+
+    @Override
+    public void encodeToWire(Buffer buffer, GeoRecord record) {
+        throw new UnsupportedOperationException("GeoIP records can not be sent to a remote node");
+    }
+
+    @Override
+    public GeoRecord decodeFromWire(int pos, Buffer buffer) {
+        throw new UnsupportedOperationException("GeoIP records can not be received from a remote node");
+    }
+
+    @Override
+    public GeoRecord transform(GeoRecord record) {
+        return record;
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public byte systemCodecID() {
+        return -1;
+    }
+}
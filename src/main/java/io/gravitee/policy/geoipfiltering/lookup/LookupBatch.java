@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.lookup;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.json.JsonArray;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The lookups gathered from an event loop, for a given policy configuration, into a single message to the geoip service.
+ *
+ * A batch is sent once the event loop is done with the events which started it, or as soon as it is full. The window is
+ * then as short as the current iteration of the event loop: under load, the requests read in a single iteration share a
+ * batch, while an idle gateway sends each lookup on its own, with no added latency.
+ *
+ * A batch is not thread safe: it must only be used from the event loop which created it.
+ *
+ * @author GraviteeSource Team
+ */
+public final class LookupBatch {
+
+    private final int maxSize;
+
+    private JsonArray addresses;
+
+    private List<Handler<AsyncResult<GeoRecord>>> handlers;
+
+    private DeliveryOptions options;
+
+    private CircuitBreaker circuitBreaker;
+
+    private boolean scheduled;
+
+    public LookupBatch(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    void add(
+        GeoIPLookup lookups,
+        Vertx vertx,
+        String address,
+        DeliveryOptions options,
+        CircuitBreaker circuitBreaker,
+        Handler<AsyncResult<GeoRecord>> handler
+    ) {
+        if (addresses == null) {
+            addresses = new JsonArray(new ArrayList<>(maxSize));
+            handlers = new ArrayList<>(maxSize);
+            this.options = options;
+            this.circuitBreaker = circuitBreaker;
+        }
+
+        addresses.add(address);
+        handlers.add(handler);
+
+        if (addresses.size() >= maxSize) {
+            flush(lookups, vertx);
+        } else if (!scheduled) {
+            scheduled = true;
+            vertx
+                .getOrCreateContext()
+                .runOnContext(v -> {
+                    scheduled = false;
+                    flush(lookups, vertx);
+                });
+        }
+    }
+
+    private void flush(GeoIPLookup lookups, Vertx vertx) {
+        if (addresses == null) {
+            return;
+        }
+
+        JsonArray sent = addresses;
+        List<Handler<AsyncResult<GeoRecord>>> waiting = handlers;
+
+        addresses = null;
+        handlers = null;
+
+        lookups.sendBatch(vertx, sent, waiting, options, circuitBreaker);
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.metrics;
+
+import io.gravitee.policy.geoipfiltering.cache.LookupCache;
+import io.gravitee.policy.geoipfiltering.rule.RuleMatches;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The metrics of the policy, shared by all its instances.
+ *
+ * They are recorded with Micrometer when the gateway provides it, and are otherwise not recorded at all: the methods of
+ * this class do nothing, and are only overridden when Micrometer is found.
+ *
+ * @author GraviteeSource Team
+ */
+public class GeoIPMetrics {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(GeoIPMetrics.class);
+
+    private static final String METER_REGISTRY_CLASS = "io.micrometer.core.instrument.MeterRegistry";
+
+    public static final GeoIPMetrics NOOP = new GeoIPMetrics();
+
+    private static final GeoIPMetrics INSTANCE = create();
+
+    protected GeoIPMetrics() {}
+
+    public static GeoIPMetrics get() {
+        return INSTANCE;
+    }
+
+    private static GeoIPMetrics create() {
+        try {
+            Class.forName(METER_REGISTRY_CLASS, false, GeoIPMetrics.class.getClassLoader());
+        } catch (ClassNotFoundException | LinkageError e) {
+            return NOOP;
+        }
+
+        try {
+            return MicrometerGeoIPMetrics.create();
+        } catch (RuntimeException | LinkageError e) {
+            LOGGER.warn("Unable to register the metrics of the GeoIP filtering policy", e);
+            return NOOP;
+        }
+    }
+
+    /**
+     * Records a request let through, on its geo data or because it could not be filtered.
+     */
+    public void allowed() {}
+
+    /**
+     * Records a request rejected by the whitelist rules.
+     */
+    public void denied() {}
+
+    /**
+     * Records a request rejected because its remote address is unknown.
+     */
+    public void unknown() {}
+
+    /**
+     * Records a request rejected because the lookup of its remote address timed out.
+     */
+    public void timedOut() {}
+
+    /**
+     * Records the start of a lookup, and returns the time it started at, to be given back once it completes.
+     */
+    public long lookupStarted() {
+        return 0;
+    }
+
+    /**
+     * Records the completion of a lookup from the geoip service, with the reason why it failed or <code>null</code>.
+     */
+    public void lookupCompleted(long startedAt, LookupFailure failure) {}
+
+    /**
+     * Records the completion of a lookup from the local database, with the reason why it failed or <code>null</code>.
+     */
+    public void embeddedLookupCompleted(long startedAt, LookupFailure failure) {}
+
+    /**
+     * Adds the given cache to the ones whose hits and misses are reported under the given name, for as long as the cache
+     * is in use.
+     */
+    public void bind(String name, LookupCache<?> cache) {}
+
+    /**
+     * Reports the requests matched by each whitelist rule of the given API, for as long as its rules are in use.
+     */
+    public void bindRules(String api, RuleMatches matches) {}
+}
@@ -0,0 +1,54 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.metrics;
+
+/**
+ * Why the geo data of a remote address could not be found, the address being then handled as unknown or according to
+ * the timeout action.
+ *
+ * @author GraviteeSource Team
+ */
+public enum LookupFailure {
+    /**
+     * The geoip service did not reply in time.
+     */
+    TIMEOUT,
+
+    /**
+     * The lookup was not sent, the circuit breaker of the geoip service being open.
+     */
+    CIRCUIT_OPEN,
+
+    /**
+     * The geoip service is not deployed.
+     */
+    NO_SERVICE,
+
+    /**
+     * The geoip service, or the local database, has no geo data for the address.
+     */
+    NO_DATA,
+
+    /**
+     * The local database could not be opened.
+     */
+    NO_DATABASE,
+
+    /**
+     * The remote address is not an IP address, and can not be looked up in the local database.
+     */
+    INVALID_ADDRESS,
+}
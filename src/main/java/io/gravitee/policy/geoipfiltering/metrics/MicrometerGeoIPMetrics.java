@@ -0,0 +1,337 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.metrics;
+
+import io.gravitee.policy.geoipfiltering.cache.LookupCache;
+import io.gravitee.policy.geoipfiltering.configuration.Rule;
+import io.gravitee.policy.geoipfiltering.rule.RuleMatches;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * The metrics of the policy, recorded with Micrometer. All the meters are registered upfront, so that recording them
+ * does not allocate.
+ *
+ * The meters are registered to the registry of the Vert.x instance of the gateway, when its metrics are enabled, or to
+ * the global Micrometer registry otherwise, directly to the registry it is made of if there is a single one.
+ *
+ * This class must only be loaded once Micrometer is known to be available.
+ *
+ * @author GraviteeSource Team
+ */
+final class MicrometerGeoIPMetrics extends GeoIPMetrics {
+
+    private static final String PREFIX = "gravitee.policy.geoip.";
+
+    private static final String VERTX_BACKEND_REGISTRIES_CLASS = "io.vertx.micrometer.backends.BackendRegistries";
+
+    private final MeterRegistry registry;
+
+    private final Counter allowed;
+
+    private final Counter denied;
+
+    private final Counter unknown;
+
+    private final Counter timedOut;
+
+    private final Counter[] failures;
+
+    private final Timer serviceLookups;
+
+    private final Timer embeddedLookups;
+
+    private final LongAdder inFlight = new LongAdder();
+
+    private final Map<String, Set<LookupCache<?>>> caches = new ConcurrentHashMap<>();
+
+    // Rule counters bound for each API, by configuration slot
+    private final Map<String, List<WeakReference<RuleMatches>>> rules = new HashMap<>();
+
+    private MicrometerGeoIPMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.allowed = verdict(registry, "allowed");
+        this.denied = verdict(registry, "denied");
+        this.unknown = verdict(registry, "unknown");
+        this.timedOut = verdict(registry, "timeout");
+
+        LookupFailure[] reasons = LookupFailure.values();
+        this.failures = new Counter[reasons.length];
+
+        for (LookupFailure reason : reasons) {
+            failures[reason.ordinal()] =
+                Counter
+                    .builder(PREFIX + "lookup.failures")
+                    .description("Lookups which did not find the geo data of a remote address, per reason")
+                    .tag("reason", reason.name().toLowerCase(Locale.ROOT))
+                    .register(registry);
+        }
+
+        this.serviceLookups = lookupTimer(registry, "service");
+        this.embeddedLookups = lookupTimer(registry, "embedded");
+
+        Gauge
+            .builder(PREFIX + "lookups.in.flight", inFlight, LongAdder::sum)
+            .description("Requests waiting for the geo data of their remote address")
+            .register(registry);
+    }
+
+    static MicrometerGeoIPMetrics create() {
+        return new MicrometerGeoIPMetrics(registry());
+    }
+
+    private static MeterRegistry registry() {
+        try {
+            Object registry = Class.forName(VERTX_BACKEND_REGISTRIES_CLASS).getMethod("getDefaultNow").invoke(null);
+
+            if (registry instanceof MeterRegistry) {
+                return (MeterRegistry) registry;
+            }
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // Vert.x metrics are not enabled
+        }
+
+        // Meters of a composite registry iterate over its registries, allocating each time they are recorded
+        Set<MeterRegistry> registries = Metrics.globalRegistry.getRegistries();
+
+        return registries.size() == 1 ? registries.iterator().next() : Metrics.globalRegistry;
+    }
+
+    private static Counter verdict(MeterRegistry registry, String verdict) {
+        return Counter
+            .builder(PREFIX + "verdicts")
+            .description("Requests filtered by the policy, per verdict")
+            .tag("verdict", verdict)
+            .register(registry);
+    }
+
+    private static Timer lookupTimer(MeterRegistry registry, String mode) {
+        return Timer
+            .builder(PREFIX + "lookup")
+            .description("Time taken to look up the geo data of a remote address")
+            .tag("mode", mode)
+            .register(registry);
+    }
+
+    @Override
+    public void allowed() {
+        allowed.increment();
+    }
+
+    @Override
+    public void denied() {
+        denied.increment();
+    }
+
+    @Override
+    public void unknown() {
+        unknown.increment();
+    }
+
+    @Override
+    public void timedOut() {
+        timedOut.increment();
+    }
+
+    @Override
+    public long lookupStarted() {
+        inFlight.increment();
+        return System.nanoTime();
+    }
+
+    @Override
+    public void lookupCompleted(long startedAt, LookupFailure failure) {
+        completed(serviceLookups, startedAt, failure);
+    }
+
+    @Override
+    public void embeddedLookupCompleted(long startedAt, LookupFailure failure) {
+        completed(embeddedLookups, startedAt, failure);
+    }
+
+    private void completed(Timer timer, long startedAt, LookupFailure failure) {
+        inFlight.decrement();
+
+        // Lookups which were not even attempted would only skew the timer towards 0
+        if (
+            failure == null || failure == LookupFailure.TIMEOUT || failure == LookupFailure.NO_SERVICE || failure == LookupFailure.NO_DATA
+        ) {
+            timer.record(System.nanoTime() - startedAt, TimeUnit.NANOSECONDS);
+        }
+
+        if (failure != null) {
+            failures[failure.ordinal()].increment();
+        }
+    }
+
+    @Override
+    public void bind(String name, LookupCache<?> cache) {
+        caches.computeIfAbsent(name, this::registerCache).add(cache);
+    }
+
+    /**
+     * Registers the meters of the caches of the given name, summed over all of them. The caches of an undeployed API are
+     * collected with it, so that their hits and misses are then no longer counted.
+     */
+    private Set<LookupCache<?>> registerCache(String name) {
+        Set<LookupCache<?>> caches = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+        FunctionCounter
+            .builder(PREFIX + "cache.hits", caches, c -> sum(c, LookupCache::getHits))
+            .description("Lookups found in the cache")
+            .tag("cache", name)
+            .register(registry);
+        FunctionCounter
+            .builder(PREFIX + "cache.misses", caches, c -> sum(c, LookupCache::getMisses))
+            .description("Lookups not found in the cache")
+            .tag("cache", name)
+            .register(registry);
+        FunctionCounter
+            .builder(PREFIX + "cache.evictions", caches, c -> sum(c, LookupCache::getEvictions))
+            .description("Entries evicted from the cache")
+            .tag("cache", name)
+            .register(registry);
+        Gauge
+            .builder(PREFIX + "cache.size", caches, c -> sum(c, LookupCache::size))
+            .description("Entries in the cache")
+            .tag("cache", name)
+            .register(registry);
+        Gauge
+            .builder(PREFIX + "cache.hit.ratio", caches, MicrometerGeoIPMetrics::hitRatio)
+            .description("Share of the lookups found in the cache")
+            .tag("cache", name)
+            .register(registry);
+
+        return caches;
+    }
+
+    /**
+     * Registers a counter per whitelist rule of a policy configuration of the given API. An API may have several
+     * configurations, one per flow or plan, each of them bound to a slot of the API. Counters only hold the rules weakly,
+     * and a slot is then reused once its rules are collected, with the ones of a new deployment.
+     */
+    @Override
+    public synchronized void bindRules(String api, RuleMatches matches) {
+        String apiTag = api != null ? api : "unknown";
+        List<WeakReference<RuleMatches>> slots = rules.computeIfAbsent(apiTag, a -> new ArrayList<>());
+        int slot = 0;
+
+        while (slot < slots.size() && slots.get(slot).get() != null) {
+            slot++;
+        }
+
+        String configurationTag = Integer.toString(slot);
+
+        if (slot == slots.size()) {
+            slots.add(new WeakReference<>(matches));
+        } else {
+            slots.set(slot, new WeakReference<>(matches));
+            removeRuleMeters(apiTag, configurationTag);
+        }
+
+        for (int i = 0; i < matches.size(); i++) {
+            Rule rule = matches.rule(i);
+
+            if (rule == null || rule.getType() == null) {
+                continue;
+            }
+
+            final int index = i;
+
+            FunctionCounter
+                .builder(PREFIX + "rule.matches", matches, m -> m.matches(index))
+                .description("Requests allowed by the whitelist rule")
+                .tag("api", apiTag)
+                .tag("configuration", configurationTag)
+                .tag("rule", Integer.toString(index))
+                .tag("type", rule.getType().name().toLowerCase(Locale.ROOT))
+                .tag("target", target(rule))
+                .register(registry);
+        }
+
+        FunctionCounter
+            .builder(PREFIX + "rule.unmatched", matches, RuleMatches::unmatched)
+            .description("Requests matched by none of the whitelist rules")
+            .tag("api", apiTag)
+            .tag("configuration", configurationTag)
+            .register(registry);
+    }
+
+    private void removeRuleMeters(String api, String configuration) {
+        for (String name : new String[] { PREFIX + "rule.matches", PREFIX + "rule.unmatched" }) {
+            for (Meter meter : registry.find(name).tag("api", api).tag("configuration", configuration).meters()) {
+                registry.remove(meter);
+            }
+        }
+    }
+
+    private static String target(Rule rule) {
+        switch (rule.getType()) {
+            case COUNTRY:
+                return String.valueOf(rule.getCountry());
+            case DISTANCE:
+                return rule.getLatitude() + "," + rule.getLongitude() + "," + rule.getDistance();
+            default:
+                return "";
+        }
+    }
+
+    private static List<LookupCache<?>> snapshot(Set<LookupCache<?>> caches) {
+        synchronized (caches) {
+            return new ArrayList<>(caches);
+        }
+    }
+
+    private static double sum(Set<LookupCache<?>> caches, ToLongFunction<LookupCache<?>> value) {
+        long sum = 0;
+
+        for (LookupCache<?> cache : snapshot(caches)) {
+            sum += value.applyAsLong(cache);
+        }
+
+        return sum;
+    }
+
+    private static double hitRatio(Set<LookupCache<?>> caches) {
+        long hits = 0;
+        long lookups = 0;
+
+        for (LookupCache<?> cache : snapshot(caches)) {
+            hits += cache.getHits();
+            lookups += cache.getHits() + cache.getMisses();
+        }
+
+        return lookups == 0 ? Double.NaN : (double) hits / lookups;
+    }
+}
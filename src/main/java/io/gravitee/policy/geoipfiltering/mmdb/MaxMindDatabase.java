@@ -0,0 +1,607 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.mmdb;
+
+import io.gravitee.policy.geoipfiltering.ip.IpAddress;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A read-only MaxMind DB (<code>.mmdb</code>) file, memory-mapped and looked up in place.
+ *
+ * Looking up an address walks the binary search tree of the file directly on the calling thread, then reads the country
+ * code and the location of the record it points to, in place: a lookup allocates nothing. The file is only ever read
+ * with absolute gets, so that a database can be shared by all the event loops.
+ *
+ * @see <a href="https://maxmind.github.io/MaxMind-DB/">MaxMind DB File Format Specification</a>
+ * @author GraviteeSource Team
+ */
+public final class MaxMindDatabase {
+
+    private static final byte[] METADATA_MARKER = {
+        (byte) 0xAB,
+        (byte) 0xCD,
+        (byte) 0xEF,
+        'M',
+        'a',
+        'x',
+        'M',
+        'i',
+        'n',
+        'd',
+        '.',
+        'c',
+        'o',
+        'm',
+    };
+
+    // The metadata section is at most 128KiB long, at the end of the file.
+    private static final int METADATA_MAX_SIZE = 128 * 1024;
+
+    private static final int DATA_SECTION_SEPARATOR_SIZE = 16;
+
+    private static final byte[] COUNTRY = "country".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] ISO_CODE = "iso_code".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] LOCATION = "location".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] LATITUDE = "latitude".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] LONGITUDE = "longitude".getBytes(StandardCharsets.US_ASCII);
+
+    static final int TYPE_EXTENDED = 0;
+    static final int TYPE_POINTER = 1;
+    static final int TYPE_UTF8_STRING = 2;
+    static final int TYPE_DOUBLE = 3;
+    static final int TYPE_BYTES = 4;
+    static final int TYPE_UINT16 = 5;
+    static final int TYPE_UINT32 = 6;
+    static final int TYPE_MAP = 7;
+    static final int TYPE_INT32 = 8;
+    static final int TYPE_UINT64 = 9;
+    static final int TYPE_UINT128 = 10;
+    static final int TYPE_ARRAY = 11;
+    static final int TYPE_BOOLEAN = 14;
+    static final int TYPE_FLOAT = 15;
+
+    private final ByteBuffer buffer;
+
+    private final int nodeCount;
+
+    private final int recordSize;
+
+    private final int ipVersion;
+
+    private final int searchTreeSize;
+
+    private final int ipv4Start;
+
+    private final int dataSectionStart;
+
+    private MaxMindDatabase(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+
+        int metadataStart = findMetadata(buffer);
+        Object metadata = new Decoder(metadataStart, 0).decode();
+
+        if (!(metadata instanceof Map)) {
+            throw new IOException("Invalid MaxMind DB metadata");
+        }
+
+        this.nodeCount = metadataInt((Map<?, ?>) metadata, "node_count");
+        this.recordSize = metadataInt((Map<?, ?>) metadata, "record_size");
+        this.ipVersion = metadataInt((Map<?, ?>) metadata, "ip_version");
+
+        if (recordSize != 24 && recordSize != 28 && recordSize != 32) {
+            throw new IOException("Unsupported MaxMind DB record size: " + recordSize);
+        }
+
+        this.searchTreeSize = recordSize * 2 / 8 * nodeCount;
+
+        if (searchTreeSize + DATA_SECTION_SEPARATOR_SIZE > metadataStart) {
+            throw new IOException("Invalid MaxMind DB search tree size");
+        }
+
+        // IPv4 addresses are stored under ::/96 in IPv6 databases.
+        int node = 0;
+
+        if (ipVersion == 6) {
+            for (int i = 0; i < 96 && node < nodeCount; i++) {
+                node = record(node, 0);
+            }
+        }
+
+        this.ipv4Start = node;
+        this.dataSectionStart = searchTreeSize + DATA_SECTION_SEPARATOR_SIZE;
+    }
+
+    public static MaxMindDatabase open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("MaxMind DB files larger than 2GiB are not supported: " + path);
+            }
+
+            return new MaxMindDatabase(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Looks up a textual IP address into the given result. Host names are never resolved, and are not found.
+     *
+     * @return whether the address has been found
+     */
+    public boolean lookup(String address, MaxMindResult result) {
+        IpAddress packed = new IpAddress();
+
+        if (!packed.parse(address)) {
+            result.reset();
+            return false;
+        }
+
+        return lookup(packed, result);
+    }
+
+    /**
+     * Looks up a packed IP address into the given result.
+     *
+     * @return whether the address has been found
+     */
+    public boolean lookup(IpAddress address, MaxMindResult result) {
+        return address.isIpv4() ? lookup(address.ipv4(), result) : lookup(address.high(), address.low(), result);
+    }
+
+    /**
+     * Looks up an IPv4 address, packed in an int, into the given result.
+     *
+     * @return whether the address has been found
+     */
+    public boolean lookup(int address, MaxMindResult result) {
+        result.reset();
+
+        int node = ipv4Start;
+        int depth = 0;
+
+        while (depth < 32 && node < nodeCount) {
+            node = record(node, (address >>> (31 - depth)) & 1);
+            depth++;
+        }
+
+        return decode(node, depth, result);
+    }
+
+    /**
+     * Looks up an IPv6 address, packed in two longs, into the given result.
+     *
+     * @return whether the address has been found
+     */
+    public boolean lookup(long high, long low, MaxMindResult result) {
+        result.reset();
+
+        if (ipVersion == 4) {
+            // IPv6 addresses are not in an IPv4 database.
+            return false;
+        }
+
+        int node = 0;
+        int depth = 0;
+
+        while (depth < 128 && node < nodeCount) {
+            long bits = depth < 64 ? high : low;
+            node = record(node, (int) (bits >>> (63 - (depth & 63))) & 1);
+            depth++;
+        }
+
+        return decode(node, depth, result);
+    }
+
+    /**
+     * Decodes the record a search ended on, reading only the country code and the location of the record.
+     */
+    private boolean decode(int node, int depth, MaxMindResult result) {
+        if (node <= nodeCount) {
+            // Either an empty record, or an invalid tree.
+            return false;
+        }
+
+        int record = dataSectionStart + node - nodeCount - DATA_SECTION_SEPARATOR_SIZE;
+
+        result.setPrefixLength(depth);
+
+        int isoCode = find(find(record, COUNTRY), ISO_CODE);
+
+        if (isoCode >= 0) {
+            long header = header(resolve(isoCode));
+
+            if (type(header) == TYPE_UTF8_STRING && size(header) == 2) {
+                int payload = payload(header);
+                result.setCountry((uint8(payload) << 16) | uint8(payload + 1));
+            }
+        }
+
+        int location = find(record, LOCATION);
+
+        if (location >= 0) {
+            result.setLocation(number(find(location, LATITUDE)), number(find(location, LONGITUDE)));
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the position of the value of the given key in the map at the given position, or <code>-1</code> if there
+     * is none.
+     */
+    private int find(int position, byte[] key) {
+        if (position < 0) {
+            return -1;
+        }
+
+        long header = header(resolve(position));
+
+        if (type(header) != TYPE_MAP) {
+            return -1;
+        }
+
+        int entry = payload(header);
+
+        for (int i = size(header); i > 0; i--) {
+            int value = skip(entry);
+
+            if (matches(entry, key)) {
+                return value;
+            }
+
+            entry = skip(value);
+        }
+
+        return -1;
+    }
+
+    private boolean matches(int position, byte[] key) {
+        long header = header(resolve(position));
+
+        if (type(header) != TYPE_UTF8_STRING || size(header) != key.length) {
+            return false;
+        }
+
+        int payload = payload(header);
+
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(payload + i) != key[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private double number(int position) {
+        if (position < 0) {
+            return Double.NaN;
+        }
+
+        long header = header(resolve(position));
+
+        switch (type(header)) {
+            case TYPE_DOUBLE:
+                return buffer.getDouble(payload(header));
+            case TYPE_FLOAT:
+                return buffer.getFloat(payload(header));
+            default:
+                return Double.NaN;
+        }
+    }
+
+    /**
+     * Returns the position of the value following the one at the given position, without decoding it.
+     */
+    private int skip(int position) {
+        int control = uint8(position);
+
+        if ((control >>> 5) == TYPE_POINTER) {
+            return position + 2 + ((control >>> 3) & 0x3);
+        }
+
+        long header = header(position);
+        int next = payload(header);
+
+        switch (type(header)) {
+            case TYPE_MAP:
+                for (int i = size(header); i > 0; i--) {
+                    next = skip(skip(next));
+                }
+                return next;
+            case TYPE_ARRAY:
+                for (int i = size(header); i > 0; i--) {
+                    next = skip(next);
+                }
+                return next;
+            case TYPE_BOOLEAN:
+                return next;
+            default:
+                return next + size(header);
+        }
+    }
+
+    /**
+     * Returns the position of the value pointed by the value at the given position if it is a pointer, or the position
+     * itself otherwise.
+     */
+    private int resolve(int position) {
+        int control = uint8(position);
+
+        if ((control >>> 5) != TYPE_POINTER) {
+            return position;
+        }
+
+        int size = (control >>> 3) & 0x3;
+        int value = control & 0x7;
+
+        switch (size) {
+            case 0:
+                return dataSectionStart + ((value << 8) | uint8(position + 1));
+            case 1:
+                return dataSectionStart + ((value << 16) | (uint8(position + 1) << 8) | uint8(position + 2)) + 2048;
+            case 2:
+                return dataSectionStart + ((value << 24) | uint24(position + 1)) + 526336;
+            default:
+                return dataSectionStart + buffer.getInt(position + 1);
+        }
+    }
+
+    /**
+     * Reads the control byte(s) of the value at the given position, packing the position of its payload, its size and its
+     * type into a long so that nothing is allocated.
+     */
+    private long header(int position) {
+        int control = uint8(position++);
+        int type = control >>> 5;
+
+        if (type == TYPE_EXTENDED) {
+            type = 7 + uint8(position++);
+        }
+
+        int size = control & 0x1F;
+
+        if (size == 29) {
+            size = 29 + uint8(position);
+            position += 1;
+        } else if (size == 30) {
+            size = 285 + ((uint8(position) << 8) | uint8(position + 1));
+            position += 2;
+        } else if (size == 31) {
+            size = 65821 + uint24(position);
+            position += 3;
+        }
+
+        return ((long) position << 32) | ((long) size << 5) | type;
+    }
+
+    private static int payload(long header) {
+        return (int) (header >>> 32);
+    }
+
+    private static int size(long header) {
+        return (int) header >>> 5;
+    }
+
+    private static int type(long header) {
+        return (int) header & 0x1F;
+    }
+
+    private int record(int node, int bit) {
+        switch (recordSize) {
+            case 24:
+                return uint24(node * 6 + bit * 3);
+            case 28:
+                int offset = node * 7;
+                if (bit == 0) {
+                    return ((uint8(offset + 3) & 0xF0) << 20) | uint24(offset);
+                }
+                return ((uint8(offset + 3) & 0x0F) << 24) | uint24(offset + 4);
+            default:
+                return buffer.getInt(node * 8 + bit * 4);
+        }
+    }
+
+    private int uint8(int offset) {
+        return buffer.get(offset) & 0xFF;
+    }
+
+    private int uint24(int offset) {
+        return (uint8(offset) << 16) | (uint8(offset + 1) << 8) | uint8(offset + 2);
+    }
+
+    private static int findMetadata(ByteBuffer buffer) throws IOException {
+        int limit = buffer.limit();
+        int lowest = Math.max(0, limit - METADATA_MAX_SIZE);
+
+        for (int start = limit - METADATA_MARKER.length; start >= lowest; start--) {
+            int i = 0;
+
+            while (i < METADATA_MARKER.length && buffer.get(start + i) == METADATA_MARKER[i]) {
+                i++;
+            }
+
+            if (i == METADATA_MARKER.length) {
+                return start + METADATA_MARKER.length;
+            }
+        }
+
+        throw new IOException("Not a MaxMind DB file, no metadata found");
+    }
+
+    private static int metadataInt(Map<?, ?> metadata, String key) throws IOException {
+        Object value = metadata.get(key);
+
+        if (!(value instanceof Number)) {
+            throw new IOException("Invalid MaxMind DB metadata, missing " + key);
+        }
+
+        return ((Number) value).intValue();
+    }
+
+    /**
+     * Decodes the values of the metadata section into plain Java objects.
+     */
+    private final class Decoder {
+
+        // Pointers are relative to the start of the section.
+        private final int base;
+
+        private int position;
+
+        private Decoder(int base, int offset) {
+            this.base = base;
+            this.position = base + offset;
+        }
+
+        private Object decode() {
+            int control = uint8(position++);
+            int type = control >>> 5;
+
+            if (type == TYPE_POINTER) {
+                int pointer = pointer(control);
+                int next = position;
+
+                position = base + pointer;
+                Object value = decode();
+                position = next;
+
+                return value;
+            }
+
+            if (type == TYPE_EXTENDED) {
+                type = 7 + uint8(position++);
+            }
+
+            int size = size(control & 0x1F);
+
+            switch (type) {
+                case TYPE_UTF8_STRING:
+                    return new String(bytes(size), StandardCharsets.UTF_8);
+                case TYPE_DOUBLE:
+                    double d = buffer.getDouble(position);
+                    position += size;
+                    return d;
+                case TYPE_FLOAT:
+                    float f = buffer.getFloat(position);
+                    position += size;
+                    return f;
+                case TYPE_BYTES:
+                    return bytes(size);
+                case TYPE_UINT16:
+                case TYPE_UINT32:
+                case TYPE_UINT64:
+                    return size > 7 ? new BigInteger(1, bytes(size)) : unsigned(size);
+                case TYPE_UINT128:
+                    return new BigInteger(1, bytes(size));
+                case TYPE_INT32:
+                    return (int) unsigned(size);
+                case TYPE_BOOLEAN:
+                    return size != 0;
+                case TYPE_MAP:
+                    Map<String, Object> map = new LinkedHashMap<>();
+                    for (int i = 0; i < size; i++) {
+                        map.put(String.valueOf(decode()), decode());
+                    }
+                    return map;
+                case TYPE_ARRAY:
+                    List<Object> list = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        list.add(decode());
+                    }
+                    return list;
+                default:
+                    throw new IllegalStateException("Unsupported MaxMind DB data type: " + type);
+            }
+        }
+
+        private int pointer(int control) {
+            int size = (control >>> 3) & 0x3;
+            int value = control & 0x7;
+
+            switch (size) {
+                case 0:
+                    value = (value << 8) | uint8(position);
+                    position += 1;
+                    return value;
+                case 1:
+                    value = ((value << 16) | (uint8(position) << 8) | uint8(position + 1)) + 2048;
+                    position += 2;
+                    return value;
+                case 2:
+                    value = ((value << 24) | uint24(position)) + 526336;
+                    position += 3;
+                    return value;
+                default:
+                    value = buffer.getInt(position);
+                    position += 4;
+                    return value;
+            }
+        }
+
+        private int size(int size) {
+            if (size < 29) {
+                return size;
+            }
+
+            if (size == 29) {
+                return 29 + uint8(position++);
+            }
+
+            if (size == 30) {
+                size = 285 + ((uint8(position) << 8) | uint8(position + 1));
+                position += 2;
+                return size;
+            }
+
+            size = 65821 + uint24(position);
+            position += 3;
+            return size;
+        }
+
+        private long unsigned(int size) {
+            long value = 0;
+
+            for (int i = 0; i < size; i++) {
+                value = (value << 8) | uint8(position++);
+            }
+
+            return value;
+        }
+
+        private byte[] bytes(int size) {
+            byte[] bytes = new byte[size];
+
+            for (int i = 0; i < size; i++) {
+                bytes[i] = buffer.get(position++);
+            }
+
+            return bytes;
+        }
+    }
+}
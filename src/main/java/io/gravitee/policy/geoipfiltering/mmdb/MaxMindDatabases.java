@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.mmdb;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The MaxMind DB files opened by the policy, shared by all the policy configurations of the gateway.
+ *
+ * A file is mapped once per path, and mapped again if it has been replaced since, so that redeploying an API picks up
+ * an updated database.
+ *
+ * @author GraviteeSource Team
+ */
+public final class MaxMindDatabases {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MaxMindDatabases.class);
+
+    private static final Map<Path, Opened> DATABASES = new ConcurrentHashMap<>();
+
+    private MaxMindDatabases() {}
+
+    /**
+     * Returns the database at the given path, or <code>null</code> if it can not be opened.
+     */
+    public static MaxMindDatabase open(String path) {
+        if (path == null || path.isEmpty()) {
+            LOGGER.error("No MaxMind DB file configured for the embedded geoip lookup");
+            return null;
+        }
+
+        Path file = Paths.get(path).toAbsolutePath().normalize();
+
+        try {
+            long lastModified = Files.getLastModifiedTime(file).toMillis();
+
+            Opened opened = DATABASES.compute(
+                file,
+                (key, current) -> {
+                    if (current != null && current.lastModified == lastModified) {
+                        return current;
+                    }
+
+                    try {
+                        return new Opened(MaxMindDatabase.open(key), lastModified);
+                    } catch (IOException ioe) {
+                        throw new IllegalStateException(ioe.getMessage(), ioe);
+                    }
+                }
+            );
+
+            return opened.database;
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.error("Unable to open the MaxMind DB file {}", file, ex);
+            return null;
+        }
+    }
+
+    private static final class Opened {
+
+        private final MaxMindDatabase database;
+
+        private final long lastModified;
+
+        private Opened(MaxMindDatabase database, long lastModified) {
+            this.database = database;
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.mmdb;
+
+/**
+ * The result of a {@link MaxMindDatabase} lookup: the country code and the location of an address.
+ *
+ * A result is mutable and meant to be reused from one lookup to the next, on the same thread, so that looking up an
+ * address allocates nothing.
+ *
+ * @author GraviteeSource Team
+ */
+public final class MaxMindResult {
+
+    /**
+     * The country code of an address whose country is unknown.
+     */
+    public static final int NO_COUNTRY = -1;
+
+    private int country;
+
+    private double latitude;
+
+    private double longitude;
+
+    private int prefixLength;
+
+    public MaxMindResult() {
+        reset();
+    }
+
+    void reset() {
+        country = NO_COUNTRY;
+        latitude = Double.NaN;
+        longitude = Double.NaN;
+        prefixLength = 0;
+    }
+
+    /**
+     * Returns the ISO-3166 alpha-2 country code, with its first char in the upper 16 bits and its second char in the lower
+     * ones, or {@link #NO_COUNTRY}.
+     */
+    public int getCountry() {
+        return country;
+    }
+
+    void setCountry(int country) {
+        this.country = country;
+    }
+
+    /**
+     * Returns the country code as a string, or <code>null</code> if it is unknown.
+     */
+    public String getCountryIsoCode() {
+        if (country == NO_COUNTRY) {
+            return null;
+        }
+
+        return new String(new char[] { (char) (country >>> 16), (char) (country & 0xFFFF) });
+    }
+
+    /**
+     * Returns the latitude, or {@link Double#NaN} if the location is unknown.
+     */
+    public double getLatitude() {
+        return latitude;
+    }
+
+    /**
+     * Returns the longitude, or {@link Double#NaN} if the location is unknown.
+     */
+    public double getLongitude() {
+        return longitude;
+    }
+
+    void setLocation(double latitude, double longitude) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+    }
+
+    /**
+     * Returns the length of the network prefix the address has been found in.
+     */
+    public int getPrefixLength() {
+        return prefixLength;
+    }
+
+    void setPrefixLength(int prefixLength) {
+        this.prefixLength = prefixLength;
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.rule;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * DISTANCE rules checked in the order of their observed matches, the most frequently matched first.
+ *
+ * Matches are counted per rule, and the rules are periodically put in a new order by the first match due to do it,
+ * while the other evaluations go on with the current order. Reordering only moves the precomputed values of the rules
+ * around, it never computes them again. The order is swapped atomically, so that evaluations are never blocked, and
+ * older matches weigh less and less so that the order follows the traffic. Reordering never changes whether a location
+ * matches, only how many rules are checked before finding it.
+ *
+ * @author GraviteeSource Team
+ */
+final class AdaptiveDistanceRules {
+
+    private static final long REORDER_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+    // A match checks whether a reorder is due once in that many, on average. Picking them at random spares the event
+    // loops a shared counter, and the clock is left alone for most matches.
+    private static final int CHECK_MASK = 1024 - 1;
+
+    // Share of the weight of a rule kept from one reordering to the next.
+    private static final double DECAY = 0.5;
+
+    // The rules in configuration order, permuted into the other orders
+    private final DistanceRules rules;
+
+    private final LongAdder[] hits;
+
+    private final AtomicReference<Order> order;
+
+    private final AtomicLong nextReorderAt;
+
+    AdaptiveDistanceRules(DistanceRules rules) {
+        int size = rules.size();
+        int[] positions = new int[size];
+
+        for (int i = 0; i < size; i++) {
+            positions[i] = i;
+        }
+
+        this.rules = rules;
+        this.hits = new LongAdder[size];
+
+        for (int i = 0; i < size; i++) {
+            hits[i] = new LongAdder();
+        }
+
+        this.order = new AtomicReference<>(new Order(rules, positions, new double[size], new long[size]));
+        this.nextReorderAt = new AtomicLong(System.nanoTime() + REORDER_INTERVAL);
+    }
+
+    /**
+     * Returns the index, in the original list, of a rule matching the given location, or <code>-1</code> if none does.
+     */
+    int match(double latitude, double longitude) {
+        Order current = order.get();
+        int matched = current.distances.match(latitude, longitude);
+
+        if (matched < 0) {
+            return -1;
+        }
+
+        int rule = current.positions[matched];
+        hits[rule].increment();
+
+        if ((ThreadLocalRandom.current().nextInt() & CHECK_MASK) == 0) {
+            reorderIfDue();
+        }
+
+        return rule;
+    }
+
+    private void reorderIfDue() {
+        long now = System.nanoTime();
+        long due = nextReorderAt.get();
+
+        // A single match reorders the rules, the other evaluations keep going with the current order.
+        if (now - due < 0 || !nextReorderAt.compareAndSet(due, now + REORDER_INTERVAL)) {
+            return;
+        }
+
+        Order current = order.get();
+        int size = hits.length;
+        double[] weights = new double[size];
+        long[] sums = new long[size];
+
+        for (int i = 0; i < size; i++) {
+            sums[i] = hits[i].sum();
+            weights[i] = current.weights[i] * DECAY + (sums[i] - current.sums[i]);
+        }
+
+        // Rules are sorted by decreasing weight, compared as floats, then by index so that ties keep the configuration
+        // order. Each rule is packed with its weight in a long, for the sort not to box anything.
+        long[] sorted = new long[size];
+
+        for (int i = 0; i < size; i++) {
+            sorted[i] = ((long) ~Float.floatToIntBits((float) weights[i]) << 32) | i;
+        }
+
+        Arrays.sort(sorted);
+
+        int[] positions = new int[size];
+        boolean changed = false;
+
+        for (int i = 0; i < size; i++) {
+            positions[i] = (int) sorted[i];
+            changed |= positions[i] != current.positions[i];
+        }
+
+        DistanceRules distances = current.distances;
+
+        if (changed) {
+            distances = rules.permute(positions);
+        } else {
+            positions = current.positions;
+        }
+
+        order.compareAndSet(current, new Order(distances, positions, weights, sums));
+    }
+
+    /**
+     * The rules in a given order, with the weights it was computed from.
+     */
+    private static final class Order {
+
+        private final DistanceRules distances;
+
+        // Index in the original list of each rule, in the order they are checked
+        private final int[] positions;
+
+        // Decayed matches of each rule, by index in the original list
+        private final double[] weights;
+
+        // Matches of each rule when this order was computed, by index in the original list
+        private final long[] sums;
+
+        private Order(DistanceRules distances, int[] positions, double[] weights, long[] sums) {
+            this.distances = distances;
+            this.positions = positions;
+            this.weights = weights;
+            this.sums = sums;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.rule;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An immutable set of country codes, held as a 676-bit bitset indexed by the two uppercase letters of an ISO-3166
+ * alpha-2 code. Checking a country then costs two char reads and a bit test, whatever the number of countries.
+ *
+ * The few codes which do not fit, such as the <code>A1</code> or <code>O1</code> pseudo-countries, are kept aside and
+ * compared one by one.
+ *
+ * @author GraviteeSource Team
+ */
+final class CountrySet {
+
+    private static final int ALPHABET_SIZE = 26;
+
+    private final long[] bits = new long[(ALPHABET_SIZE * ALPHABET_SIZE + 63) >>> 6];
+
+    private final String[] others;
+
+    private final boolean empty;
+
+    CountrySet(Collection<String> countries) {
+        List<String> others = new ArrayList<>();
+
+        for (String country : countries) {
+            int index = index(country);
+
+            if (index >= 0) {
+                bits[index >>> 6] |= 1L << index;
+            } else if (!others.contains(country)) {
+                others.add(country);
+            }
+        }
+
+        this.others = others.toArray(new String[0]);
+        this.empty = countries.isEmpty();
+    }
+
+    boolean contains(String country) {
+        if (empty || country == null) {
+            return false;
+        }
+
+        if (country.length() == 2) {
+            return contains(country.charAt(0), country.charAt(1));
+        }
+
+        for (String other : others) {
+            if (other.equals(country)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Checks a two chars country code, packed as by {@link RuleProgram#evaluate(int, double, double)}.
+     */
+    boolean contains(int country) {
+        if (empty || country < 0) {
+            return false;
+        }
+
+        return contains((char) (country >>> 16), (char) (country & 0xFFFF));
+    }
+
+    private boolean contains(char first, char second) {
+        int index = index(first, second);
+
+        if (index >= 0) {
+            return (bits[index >>> 6] & (1L << index)) != 0;
+        }
+
+        for (String other : others) {
+            if (other.length() == 2 && other.charAt(0) == first && other.charAt(1) == second) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the slot of the given country in this set, or <code>-1</code> if it is not in the set. Slots range from 0
+     * to {@link #slots()} excluded.
+     */
+    int slot(String country) {
+        if (empty || country == null) {
+            return -1;
+        }
+
+        if (country.length() == 2) {
+            return slot(country.charAt(0), country.charAt(1));
+        }
+
+        for (int i = 0; i < others.length; i++) {
+            if (others[i].equals(country)) {
+                return ALPHABET_SIZE * ALPHABET_SIZE + i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the slot of a two chars country code, packed as by {@link RuleProgram#evaluate(int, double, double)}, or
+     * <code>-1</code> if it is not in the set.
+     */
+    int slot(int country) {
+        if (empty || country < 0) {
+            return -1;
+        }
+
+        return slot((char) (country >>> 16), (char) (country & 0xFFFF));
+    }
+
+    private int slot(char first, char second) {
+        int index = index(first, second);
+
+        if (index >= 0) {
+            return (bits[index >>> 6] & (1L << index)) != 0 ? index : -1;
+        }
+
+        for (int i = 0; i < others.length; i++) {
+            String other = others[i];
+
+            if (other.length() == 2 && other.charAt(0) == first && other.charAt(1) == second) {
+                return ALPHABET_SIZE * ALPHABET_SIZE + i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the number of slots of this set, present or not.
+     */
+    int slots() {
+        return ALPHABET_SIZE * ALPHABET_SIZE + others.length;
+    }
+
+    /**
+     * Returns the index of the given code in the bitset, or <code>-1</code> if it is not made of two uppercase letters.
+     */
+    private static int index(String country) {
+        if (country.length() != 2) {
+            return -1;
+        }
+
+        return index(country.charAt(0), country.charAt(1));
+    }
+
+    private static int index(char first, char second) {
+        int row = first - 'A';
+        int column = second - 'A';
+
+        if (row < 0 || row >= ALPHABET_SIZE || column < 0 || column >= ALPHABET_SIZE) {
+            return -1;
+        }
+
+        return row * ALPHABET_SIZE + column;
+    }
+}
@@ -0,0 +1,345 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.rule;
+
+import io.gravitee.policy.geoipfiltering.configuration.Rule;
+import java.util.List;
+
+/**
+ * The DISTANCE rules of a policy configuration, with their trigonometry precomputed when the rules are loaded.
+ *
+ * A rule matches when the haversine distance between its center and the request location is lower than the rule
+ * distance. Since the distance is a monotonic function of the haversine <code>a</code> term, the rule distance is turned
+ * into a limit on that term, so that evaluating a rule needs neither <code>asin</code> nor <code>sqrt</code>. The limit
+ * is tuned to the ulp against the original formula, so that the verdicts are exactly the same.
+ *
+ * Each rule also gets a conservative latitude / longitude bounding box, in degrees. Most requests are far away from the
+ * rule centers, and are then rejected by a couple of comparisons before any trigonometry. A box wrapping around the
+ * antimeridian has its minimum longitude greater than its maximum one, while a box including a pole spans all the
+ * longitudes.
+ *
+ * When there are many rules, the boxes are also indexed in a {@link SpatialIndex}, so that a request only goes through
+ * the rules around its location.
+ *
+ * @author GraviteeSource Team
+ */
+final class DistanceRules {
+
+    // Radius of earth in meters
+    private static final double EARTH_RADIUS = 6371 * 1000;
+
+    // Bounding boxes are widened to absorb the rounding errors of the haversine formula, a few millimeters at most.
+    private static final double BOX_RELATIVE_MARGIN = 1e-6;
+
+    private static final double BOX_ABSOLUTE_MARGIN = 1e-9;
+
+    // Below that number of rules, scanning all the boxes is cheaper than looking up the index.
+    private static final int INDEX_THRESHOLD = 64;
+
+    private final double[] latitudes;
+
+    private final double[] longitudes;
+
+    private final double[] cosLatitudes;
+
+    private final double[] limits;
+
+    private final double[] minLatitudes;
+
+    private final double[] maxLatitudes;
+
+    private final double[] minLongitudes;
+
+    private final double[] maxLongitudes;
+
+    private final SpatialIndex index;
+
+    DistanceRules(List<Rule> rules) {
+        int size = rules.size();
+
+        this.latitudes = new double[size];
+        this.longitudes = new double[size];
+        this.cosLatitudes = new double[size];
+        this.limits = new double[size];
+        this.minLatitudes = new double[size];
+        this.maxLatitudes = new double[size];
+        this.minLongitudes = new double[size];
+        this.maxLongitudes = new double[size];
+
+        for (int i = 0; i < size; i++) {
+            Rule rule = rules.get(i);
+
+            latitudes[i] = Math.toRadians(rule.getLatitude());
+            longitudes[i] = Math.toRadians(rule.getLongitude());
+            cosLatitudes[i] = Math.cos(latitudes[i]);
+            limits[i] = limit(rule.getDistance());
+
+            box(i, rule);
+        }
+
+        this.index = size >= INDEX_THRESHOLD ? new SpatialIndex(minLatitudes, maxLatitudes, minLongitudes, maxLongitudes) : null;
+    }
+
+    private DistanceRules(DistanceRules rules, int[] order, SpatialIndex index) {
+        this.latitudes = permute(rules.latitudes, order);
+        this.longitudes = permute(rules.longitudes, order);
+        this.cosLatitudes = permute(rules.cosLatitudes, order);
+        this.limits = permute(rules.limits, order);
+        this.minLatitudes = permute(rules.minLatitudes, order);
+        this.maxLatitudes = permute(rules.maxLatitudes, order);
+        this.minLongitudes = permute(rules.minLongitudes, order);
+        this.maxLongitudes = permute(rules.maxLongitudes, order);
+        this.index = index;
+    }
+
+    /**
+     * Returns these rules in another order, <code>order[i]</code> being the index of the rule to check in position
+     * <code>i</code>. Nothing is computed again, the precomputed values and the index are only moved around.
+     */
+    DistanceRules permute(int[] order) {
+        if (index == null) {
+            return new DistanceRules(this, order, null);
+        }
+
+        int[] ranks = new int[order.length];
+
+        for (int i = 0; i < order.length; i++) {
+            ranks[order[i]] = i;
+        }
+
+        return new DistanceRules(this, order, index.permute(ranks));
+    }
+
+    private static double[] permute(double[] values, int[] order) {
+        double[] permuted = new double[values.length];
+
+        for (int i = 0; i < permuted.length; i++) {
+            permuted[i] = values[order[i]];
+        }
+
+        return permuted;
+    }
+
+    private void box(int i, Rule rule) {
+        double latitude = rule.getLatitude();
+        double longitude = rule.getLongitude();
+
+        if (limits[i] == 0) {
+            // The rule never matches, the box is empty.
+            minLatitudes[i] = Double.POSITIVE_INFINITY;
+            maxLatitudes[i] = Double.NEGATIVE_INFINITY;
+            minLongitudes[i] = Double.NEGATIVE_INFINITY;
+            maxLongitudes[i] = Double.POSITIVE_INFINITY;
+            return;
+        }
+
+        // Angular radius of the rule, in radians
+        double radius = (rule.getDistance() / EARTH_RADIUS) * (1 + BOX_RELATIVE_MARGIN) + BOX_ABSOLUTE_MARGIN;
+
+        if (!(latitude >= -90 && latitude <= 90) || !Double.isFinite(longitude) || radius >= Math.PI / 2) {
+            minLatitudes[i] = Double.NEGATIVE_INFINITY;
+            maxLatitudes[i] = Double.POSITIVE_INFINITY;
+            minLongitudes[i] = Double.NEGATIVE_INFINITY;
+            maxLongitudes[i] = Double.POSITIVE_INFINITY;
+            return;
+        }
+
+        minLatitudes[i] = latitude - Math.toDegrees(radius);
+        maxLatitudes[i] = latitude + Math.toDegrees(radius);
+
+        if (minLatitudes[i] <= -90 || maxLatitudes[i] >= 90) {
+            // The box includes a pole, and then all the longitudes.
+            minLongitudes[i] = Double.NEGATIVE_INFINITY;
+            maxLongitudes[i] = Double.POSITIVE_INFINITY;
+            return;
+        }
+
+        // Widest longitude extent of the circle, reached below or above the center latitude.
+        double extent = Math.toDegrees(Math.asin(Math.min(Math.sin(radius) / Math.cos(Math.toRadians(latitude)), 1)));
+        extent = extent * (1 + BOX_RELATIVE_MARGIN) + BOX_ABSOLUTE_MARGIN;
+
+        if (extent >= 180) {
+            minLongitudes[i] = Double.NEGATIVE_INFINITY;
+            maxLongitudes[i] = Double.POSITIVE_INFINITY;
+            return;
+        }
+
+        // Normalize the center longitude to [-180, 180), then wrap the bounds around the antimeridian.
+        double center = ((longitude + 180) % 360 + 360) % 360 - 180;
+        double min = center - extent;
+        double max = center + extent;
+
+        minLongitudes[i] = min < -180 ? min + 360 : min;
+        maxLongitudes[i] = max > 180 ? max - 360 : max;
+    }
+
+    int size() {
+        return limits.length;
+    }
+
+    /**
+     * Returns whether any rule matches the given location, in degrees.
+     */
+    boolean anyMatch(double latitude, double longitude) {
+        return match(latitude, longitude) >= 0;
+    }
+
+    /**
+     * Returns the index of a rule matching the given location, in degrees, or <code>-1</code> if none does. When several
+     * rules match, the one returned is the first one checked, which is not always the first one by index.
+     */
+    int match(double latitude, double longitude) {
+        if (limits.length == 0 || Double.isNaN(latitude) || Double.isNaN(longitude)) {
+            return -1;
+        }
+
+        // Boxes are only meaningful for a location within the usual ranges.
+        boolean boxed = latitude >= -90 && latitude <= 90 && longitude >= -180 && longitude <= 180;
+
+        if (boxed && index != null) {
+            return matchIndexed(latitude, longitude);
+        }
+
+        boolean converted = false;
+        double lat = 0;
+        double lon = 0;
+        double cosLat = 0;
+
+        for (int i = 0; i < limits.length; i++) {
+            if (boxed && outside(i, latitude, longitude)) {
+                continue;
+            }
+
+            if (!converted) {
+                converted = true;
+                lat = Math.toRadians(latitude);
+                lon = Math.toRadians(longitude);
+                cosLat = Math.cos(lat);
+            }
+
+            if (matches(i, lat, lon, cosLat)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private int matchIndexed(double latitude, double longitude) {
+        int cell = index.cell(latitude, longitude);
+        int position = index.start(cell);
+        int end = index.end(cell);
+        int[] globals = index.globals();
+        int global = 0;
+
+        if (position == end && globals.length == 0) {
+            return -1;
+        }
+
+        double lat = Math.toRadians(latitude);
+        double lon = Math.toRadians(longitude);
+        double cosLat = Math.cos(lat);
+
+        // Merge the rules of the cell with the global ones, both being sorted by rule index.
+        while (position < end || global < globals.length) {
+            int rule;
+
+            if (global == globals.length || (position < end && index.entry(position) < globals[global])) {
+                rule = index.entry(position++);
+            } else {
+                rule = globals[global++];
+            }
+
+            if (!outside(rule, latitude, longitude) && matches(rule, lat, lon, cosLat)) {
+                return rule;
+            }
+        }
+
+        return -1;
+    }
+
+    private boolean outside(int rule, double latitude, double longitude) {
+        if (latitude < minLatitudes[rule] || latitude > maxLatitudes[rule]) {
+            return true;
+        }
+
+        double min = minLongitudes[rule];
+        double max = maxLongitudes[rule];
+
+        if (min <= max) {
+            return longitude < min || longitude > max;
+        }
+
+        // The box wraps around the antimeridian.
+        return longitude < min && longitude > max;
+    }
+
+    private boolean matches(int rule, double lat, double lon, double cosLat) {
+        double a = haversine(latitudes[rule], cosLatitudes[rule], longitudes[rule], lat, cosLat, lon);
+
+        // A negative or NaN term is a NaN distance for the original formula, which never matches.
+        return a >= 0 && a < limits[rule];
+    }
+
+    /**
+     * Computes the <code>a</code> term of the haversine formula, with the same operations and in the same order as the
+     * original <code>Math.pow(Math.sin(dlat / 2), 2) + Math.cos(lat1) * Math.cos(lat2) * Math.pow(Math.sin(dlon / 2), 2)</code>.
+     * <code>Math.pow(x, 2)</code> is exactly <code>x * x</code> since Java 9.
+     */
+    private static double haversine(double lat1, double cosLat1, double lon1, double lat2, double cosLat2, double lon2) {
+        double sinDlat = Math.sin((lat2 - lat1) / 2);
+        double sinDlon = Math.sin((lon2 - lon1) / 2);
+
+        return sinDlat * sinDlat + cosLat1 * cosLat2 * (sinDlon * sinDlon);
+    }
+
+    /**
+     * Returns the smallest haversine term for which the original formula no longer matches the given distance, so that
+     * <code>distance(a) &lt; distance</code> if and only if <code>0 &lt;= a &lt; limit</code>.
+     */
+    static double limit(long distance) {
+        if (!matches(0, distance)) {
+            return 0;
+        }
+
+        // Starting from the exact limit, adjust to the ulp. Slightly above 1, the square root rounds to 1 and the original
+        // formula still matches, before it gives NaN and does not match anymore.
+        double sin = Math.sin(Math.min(distance / (2 * EARTH_RADIUS), Math.PI / 2));
+        double limit = Math.min(Math.max(sin * sin, Double.MIN_VALUE), 1);
+
+        if (matches(limit, distance)) {
+            do {
+                limit = Math.nextUp(limit);
+            } while (matches(limit, distance));
+        } else {
+            while (!matches(Math.nextDown(limit), distance)) {
+                limit = Math.nextDown(limit);
+            }
+        }
+
+        return limit;
+    }
+
+    /**
+     * The verdict of the original formula for a given haversine term, the distance being <code>2 * asin(sqrt(a))</code>
+     * times the radius of earth.
+     */
+    private static boolean matches(double a, long distance) {
+        double c = 2 * Math.asin(Math.sqrt(a));
+
+        return (c * 6371 * 1000) < distance;
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.rule;
+
+import io.gravitee.policy.geoipfiltering.configuration.Rule;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The number of requests matched by each whitelist rule of a policy configuration, indexed by rule position.
+ *
+ * A request is counted for the rule which allowed it, that is the first COUNTRY rule of its country, or else a DISTANCE
+ * rule around its location, even if other rules match it as well. A rule never counted can then be removed without
+ * rejecting any of the requests seen so far. Counters are shared by all the event loops, and are {@link LongAdder} so
+ * that they do not contend on a single cache line.
+ *
+ * @author GraviteeSource Team
+ */
+public final class RuleMatches {
+
+    private final List<Rule> rules;
+
+    private final LongAdder[] matches;
+
+    private final LongAdder unmatched = new LongAdder();
+
+    private final AtomicBoolean exported = new AtomicBoolean();
+
+    RuleMatches(List<Rule> rules) {
+        this.rules = rules;
+        this.matches = new LongAdder[rules.size()];
+
+        for (int i = 0; i < matches.length; i++) {
+            matches[i] = new LongAdder();
+        }
+    }
+
+    void countMatch(int rule) {
+        matches[rule].increment();
+    }
+
+    void countUnmatched() {
+        unmatched.increment();
+    }
+
+    public int size() {
+        return matches.length;
+    }
+
+    /**
+     * Returns the rule at the given position, which may be <code>null</code> as in the configuration.
+     */
+    public Rule rule(int rule) {
+        return rules.get(rule);
+    }
+
+    public long matches(int rule) {
+        return matches[rule].sum();
+    }
+
+    /**
+     * Returns the number of requests matched by none of the rules, and then rejected.
+     */
+    public long unmatched() {
+        return unmatched.sum();
+    }
+
+    /**
+     * Returns <code>true</code> the first time only, for the counters to be exported once.
+     */
+    public boolean export() {
+        return !exported.get() && exported.compareAndSet(false, true);
+    }
+}
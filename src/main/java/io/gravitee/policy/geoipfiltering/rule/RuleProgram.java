@@ -0,0 +1,240 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.rule;
+
+import io.gravitee.policy.geoipfiltering.configuration.Rule;
+import io.gravitee.policy.geoipfiltering.lookup.GeoRecord;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The whitelist rules of a policy configuration, compiled once into a flat evaluator.
+ *
+ * COUNTRY rules are merged into a single bitset of country codes, while DISTANCE rules are laid out as primitive arrays
+ * of precomputed values, so that evaluating a request neither allocates nor goes through a stream pipeline. A program
+ * is immutable, except for its optional {@link RuleMatches} counters, and can then be shared by all the event loops.
+ *
+ * @author GraviteeSource Team
+ */
+public final class RuleProgram {
+
+    private static final RuleProgram ALLOW_ALL = new RuleProgram(
+        true,
+        new CountrySet(Collections.emptySet()),
+        new DistanceRules(Collections.emptyList()),
+        null,
+        null,
+        null,
+        null
+    );
+
+    private final boolean allowAll;
+
+    private final CountrySet countries;
+
+    private final DistanceRules distances;
+
+    // DISTANCE rules in the order of their matches, if enabled
+    private final AdaptiveDistanceRules adaptiveDistances;
+
+    private final RuleMatches matches;
+
+    // Positions of the rules, by country slot and by distance rule, when matches are counted.
+    private final int[] countryRules;
+
+    private final int[] distanceRules;
+
+    private RuleProgram(
+        boolean allowAll,
+        CountrySet countries,
+        DistanceRules distances,
+        AdaptiveDistanceRules adaptiveDistances,
+        RuleMatches matches,
+        int[] countryRules,
+        int[] distanceRules
+    ) {
+        this.allowAll = allowAll;
+        this.countries = countries;
+        this.distances = distances;
+        this.adaptiveDistances = adaptiveDistances;
+        this.matches = matches;
+        this.countryRules = countryRules;
+        this.distanceRules = distanceRules;
+    }
+
+    /**
+     * Compiles the given whitelist rules. A <code>null</code> list allows all the requests, as an empty one rejects them all.
+     */
+    public static RuleProgram compile(List<Rule> rules) {
+        return compile(rules, false);
+    }
+
+    /**
+     * Compiles the given whitelist rules, counting the requests matched by each of them if <code>countMatches</code> is
+     * set. Requests allowed by a <code>null</code> list are not counted.
+     */
+    public static RuleProgram compile(List<Rule> rules, boolean countMatches) {
+        return compile(rules, countMatches, false);
+    }
+
+    /**
+     * Compiles the given whitelist rules, also checking the DISTANCE rules in the order of their matches if
+     * <code>adaptiveOrder</code> is set. COUNTRY rules are always checked first, all at once.
+     */
+    public static RuleProgram compile(List<Rule> rules, boolean countMatches, boolean adaptiveOrder) {
+        if (rules == null) {
+            return ALLOW_ALL;
+        }
+
+        // Only the first rule of a country can match, the next ones being shadowed by it.
+        Map<String, Integer> countries = new LinkedHashMap<>();
+        List<Rule> distanceRules = new ArrayList<>();
+        List<Integer> distancePositions = new ArrayList<>();
+
+        for (int position = 0; position < rules.size(); position++) {
+            Rule rule = rules.get(position);
+
+            if (rule == null || rule.getType() == null) {
+                continue;
+            }
+
+            switch (rule.getType()) {
+                case COUNTRY:
+                    if (rule.getCountry() != null) {
+                        countries.putIfAbsent(rule.getCountry(), position);
+                    }
+                    break;
+                case DISTANCE:
+                    distanceRules.add(rule);
+                    distancePositions.add(position);
+                    break;
+            }
+        }
+
+        CountrySet countrySet = new CountrySet(countries.keySet());
+        DistanceRules distances = new DistanceRules(distanceRules);
+        AdaptiveDistanceRules adaptiveDistances = adaptiveOrder && distances.size() > 1 ? new AdaptiveDistanceRules(distances) : null;
+
+        if (!countMatches) {
+            return new RuleProgram(false, countrySet, distances, adaptiveDistances, null, null, null);
+        }
+
+        int[] countryRules = new int[countrySet.slots()];
+        Arrays.fill(countryRules, -1);
+        countries.forEach((country, position) -> countryRules[countrySet.slot(country)] = position);
+
+        return new RuleProgram(
+            false,
+            countrySet,
+            distances,
+            adaptiveDistances,
+            new RuleMatches(Collections.unmodifiableList(new ArrayList<>(rules))),
+            countryRules,
+            distancePositions.stream().mapToInt(Integer::intValue).toArray()
+        );
+    }
+
+    /**
+     * Returns the counters of the requests matched by each rule, or <code>null</code> if they are not counted.
+     */
+    public RuleMatches matches() {
+        return matches;
+    }
+
+    public boolean evaluate(GeoRecord geoData) {
+        if (allowAll) {
+            return true;
+        }
+
+        if (geoData == null) {
+            return false;
+        }
+
+        if (geoData.getCountry() >= 0) {
+            return evaluate(geoData.getCountry(), geoData.getLatitude(), geoData.getLongitude());
+        }
+
+        return evaluate(geoData.getCountryIsoCode(), geoData.getLatitude(), geoData.getLongitude());
+    }
+
+    /**
+     * Evaluates the rules against the geo data of a request. An unknown location is given as {@link Double#NaN}.
+     */
+    public boolean evaluate(String countryIsoCode, double latitude, double longitude) {
+        if (allowAll) {
+            return true;
+        }
+
+        if (matches != null) {
+            return count(countries.slot(countryIsoCode), latitude, longitude);
+        }
+
+        if (countries.contains(countryIsoCode)) {
+            return true;
+        }
+
+        if (adaptiveDistances != null) {
+            return adaptiveDistances.match(latitude, longitude) >= 0;
+        }
+
+        return distances.anyMatch(latitude, longitude);
+    }
+
+    /**
+     * Evaluates the rules against the geo data of a request, the country code being packed with its first char in the
+     * upper 16 bits and its second char in the lower ones, or negative if it is unknown.
+     */
+    public boolean evaluate(int countryIsoCode, double latitude, double longitude) {
+        if (allowAll) {
+            return true;
+        }
+
+        if (matches != null) {
+            return count(countries.slot(countryIsoCode), latitude, longitude);
+        }
+
+        if (countries.contains(countryIsoCode)) {
+            return true;
+        }
+
+        if (adaptiveDistances != null) {
+            return adaptiveDistances.match(latitude, longitude) >= 0;
+        }
+
+        return distances.anyMatch(latitude, longitude);
+    }
+
+    private boolean count(int countrySlot, double latitude, double longitude) {
+        if (countrySlot >= 0) {
+            matches.countMatch(countryRules[countrySlot]);
+            return true;
+        }
+
+        int distanceRule = adaptiveDistances != null ? adaptiveDistances.match(latitude, longitude) : distances.match(latitude, longitude);
+
+        if (distanceRule >= 0) {
+            matches.countMatch(distanceRules[distanceRule]);
+            return true;
+        }
+
+        matches.countUnmatched();
+        return false;
+    }
+}
@@ -0,0 +1,245 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.rule;
+
+import java.util.Arrays;
+
+/**
+ * A grid of latitude / longitude cells, each of them listing the DISTANCE rules whose bounding box overlaps the cell.
+ *
+ * A location lies in a single cell, and a rule whose box contains that location necessarily overlaps the cell: looking
+ * up the rules of the cell then gives the same verdict as scanning all of them, while only touching the nearby ones.
+ * Rules whose box covers a large part of the grid are kept aside in a global list, checked for every location. Rule
+ * indexes are sorted in both lists, so that rules are still evaluated in their configuration order.
+ *
+ * @author GraviteeSource Team
+ */
+final class SpatialIndex {
+
+    private static final double MIN_CELL_SIZE = 1;
+
+    private static final double MAX_CELL_SIZE = 10;
+
+    // Rules overlapping more cells than that are checked for every location instead.
+    private static final int MAX_CELLS_PER_RULE = 256;
+
+    private final double cellSize;
+
+    private final int rows;
+
+    private final int columns;
+
+    // The rules of cell c are entries[offsets[c]] to entries[offsets[c + 1] - 1].
+    private final int[] offsets;
+
+    private final int[] entries;
+
+    private final int[] globals;
+
+    SpatialIndex(double[] minLatitudes, double[] maxLatitudes, double[] minLongitudes, double[] maxLongitudes) {
+        int size = minLatitudes.length;
+
+        this.cellSize = cellSize(minLatitudes, maxLatitudes);
+        this.rows = (int) Math.ceil(180 / cellSize);
+        this.columns = (int) Math.ceil(360 / cellSize);
+
+        int[] counts = new int[rows * columns];
+        int[] globals = new int[size];
+        int globalCount = 0;
+        boolean[] global = new boolean[size];
+
+        for (int i = 0; i < size; i++) {
+            if (cells(i, minLatitudes, maxLatitudes, minLongitudes, maxLongitudes, null) > MAX_CELLS_PER_RULE) {
+                global[i] = true;
+                globals[globalCount++] = i;
+            } else {
+                cells(i, minLatitudes, maxLatitudes, minLongitudes, maxLongitudes, counts);
+            }
+        }
+
+        this.globals = Arrays.copyOf(globals, globalCount);
+        this.offsets = new int[counts.length + 1];
+
+        for (int c = 0; c < counts.length; c++) {
+            offsets[c + 1] = offsets[c] + counts[c];
+        }
+
+        this.entries = new int[offsets[counts.length]];
+
+        // Fill the cells in rule order, reusing the counts as the next free slot of each cell.
+        System.arraycopy(offsets, 0, counts, 0, counts.length);
+
+        for (int i = 0; i < size; i++) {
+            if (!global[i]) {
+                fill(i, minLatitudes, maxLatitudes, minLongitudes, maxLongitudes, counts);
+            }
+        }
+    }
+
+    private SpatialIndex(double cellSize, int rows, int columns, int[] offsets, int[] entries, int[] globals) {
+        this.cellSize = cellSize;
+        this.rows = rows;
+        this.columns = columns;
+        this.offsets = offsets;
+        this.entries = entries;
+        this.globals = globals;
+    }
+
+    /**
+     * Returns this index with its rules renumbered, <code>ranks[i]</code> being the new index of rule <code>i</code>. The
+     * cells are the same, only their rules are renumbered and sorted again.
+     */
+    SpatialIndex permute(int[] ranks) {
+        int[] entries = new int[this.entries.length];
+
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = ranks[this.entries[i]];
+        }
+
+        for (int c = 0; c + 1 < offsets.length; c++) {
+            if (offsets[c + 1] - offsets[c] > 1) {
+                Arrays.sort(entries, offsets[c], offsets[c + 1]);
+            }
+        }
+
+        int[] globals = new int[this.globals.length];
+
+        for (int i = 0; i < globals.length; i++) {
+            globals[i] = ranks[this.globals[i]];
+        }
+
+        Arrays.sort(globals);
+
+        return new SpatialIndex(cellSize, rows, columns, offsets, entries, globals);
+    }
+
+    /**
+     * Returns the cell of a location, given within the usual latitude and longitude ranges.
+     */
+    int cell(double latitude, double longitude) {
+        return row(latitude) * columns + column(longitude);
+    }
+
+    int start(int cell) {
+        return offsets[cell];
+    }
+
+    int end(int cell) {
+        return offsets[cell + 1];
+    }
+
+    int entry(int position) {
+        return entries[position];
+    }
+
+    int[] globals() {
+        return globals;
+    }
+
+    /**
+     * Counts the cells overlapped by the box of a rule, and increments their count if <code>counts</code> is given.
+     */
+    private int cells(
+        int rule,
+        double[] minLatitudes,
+        double[] maxLatitudes,
+        double[] minLongitudes,
+        double[] maxLongitudes,
+        int[] counts
+    ) {
+        if (minLatitudes[rule] > maxLatitudes[rule]) {
+            // Empty box
+            return 0;
+        }
+
+        int firstRow = row(Math.max(minLatitudes[rule], -90));
+        int lastRow = row(Math.min(maxLatitudes[rule], 90));
+        int total = 0;
+
+        for (int row = firstRow; row <= lastRow; row++) {
+            total += columns(row, minLongitudes[rule], maxLongitudes[rule], counts, null, rule);
+        }
+
+        return total;
+    }
+
+    private void fill(int rule, double[] minLatitudes, double[] maxLatitudes, double[] minLongitudes, double[] maxLongitudes, int[] next) {
+        if (minLatitudes[rule] > maxLatitudes[rule]) {
+            return;
+        }
+
+        int firstRow = row(Math.max(minLatitudes[rule], -90));
+        int lastRow = row(Math.min(maxLatitudes[rule], 90));
+
+        for (int row = firstRow; row <= lastRow; row++) {
+            columns(row, minLongitudes[rule], maxLongitudes[rule], null, next, rule);
+        }
+    }
+
+    /**
+     * Visits the cells of a row overlapped by a longitude range, wrapping around the antimeridian if needed. Either
+     * counts them, or adds the rule to them.
+     */
+    private int columns(int row, double min, double max, int[] counts, int[] next, int rule) {
+        if (min <= max) {
+            return columns(row, column(Math.max(min, -180)), column(Math.min(max, 180)), counts, next, rule);
+        }
+
+        return (columns(row, column(min), columns - 1, counts, next, rule) + columns(row, 0, column(max), counts, next, rule));
+    }
+
+    private int columns(int row, int first, int last, int[] counts, int[] next, int rule) {
+        for (int column = first; column <= last; column++) {
+            int cell = row * columns + column;
+
+            if (counts != null) {
+                counts[cell]++;
+            }
+
+            if (next != null) {
+                entries[next[cell]++] = rule;
+            }
+        }
+
+        return last - first + 1;
+    }
+
+    private int row(double latitude) {
+        return Math.min((int) ((latitude + 90) / cellSize), rows - 1);
+    }
+
+    private int column(double longitude) {
+        return Math.min((int) ((longitude + 180) / cellSize), columns - 1);
+    }
+
+    /**
+     * Sizes the cells after the median latitude span of the rule boxes, so that a rule typically overlaps a few cells.
+     */
+    private static double cellSize(double[] minLatitudes, double[] maxLatitudes) {
+        double[] spans = new double[minLatitudes.length];
+
+        for (int i = 0; i < spans.length; i++) {
+            spans[i] = maxLatitudes[i] - minLatitudes[i];
+        }
+
+        Arrays.sort(spans);
+
+        double median = spans.length == 0 ? MAX_CELL_SIZE : spans[spans.length / 2];
+
+        // Unbounded boxes end up with the largest cells, empty ones with the smallest.
+        return median >= MIN_CELL_SIZE ? (median <= MAX_CELL_SIZE ? median : MAX_CELL_SIZE) : MIN_CELL_SIZE;
+    }
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import io.gravitee.gateway.api.Request;
+import io.gravitee.gateway.api.Response;
+import io.gravitee.policy.api.PolicyChain;
+import io.gravitee.policy.api.PolicyResult;
+import io.gravitee.policy.geoipfiltering.configuration.CacheConfiguration;
+import io.gravitee.policy.geoipfiltering.configuration.GeoIPFilteringPolicyConfiguration;
+import io.gravitee.policy.geoipfiltering.configuration.Rule;
+import io.gravitee.policy.geoipfiltering.configuration.RuleType;
+import io.gravitee.policy.geoipfiltering.lookup.GeoIPLookup;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.json.JsonObject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Filters requests whose geo data is looked up from a geoip service which replies on demand.
+ *
+ * @author GraviteeSource Team
+ */
+public class GeoIPFilteringPolicyTest {
+
+    private static final String ALLOWED = "ALLOWED";
+
+    private Vertx vertx;
+
+    private Context context;
+
+    // Lookups received by the geoip service, replied by the test
+    private final BlockingQueue<Message<Object>> lookups = new LinkedBlockingQueue<>();
+
+    private final AtomicInteger sent = new AtomicInteger();
+
+    @Before
+    public void startVertx() throws Exception {
+        vertx = Vertx.vertx();
+        context = vertx.getOrCreateContext();
+
+        vertx
+            .eventBus()
+            .addOutboundInterceptor(delivery -> {
+                if (GeoIPLookup.GEOIP_SERVICE.equals(delivery.message().address())) {
+                    sent.incrementAndGet();
+                }
+                delivery.next();
+            });
+
+        CompletableFuture<Void> registered = new CompletableFuture<>();
+
+        vertx.eventBus().consumer(GeoIPLookup.GEOIP_SERVICE, lookups::add).completionHandler(done -> registered.complete(null));
+        registered.get(10, TimeUnit.SECONDS);
+    }
+
+    @After
+    public void stopVertx() throws Exception {
+        CompletableFuture<Void> closed = new CompletableFuture<>();
+
+        vertx.close(done -> closed.complete(null));
+        closed.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void shouldServeStaleGeoDataWhileRevalidating() throws Exception {
+        GeoIPFilteringPolicyConfiguration configuration = configuration();
+
+        CompletableFuture<List<String>> first = requests(configuration, "1.2.3.4", 1);
+        reply(lookups.poll(10, TimeUnit.SECONDS), "FR");
+        assertEquals(Collections.singletonList(ALLOWED), first.get(10, TimeUnit.SECONDS));
+
+        Thread.sleep(1100);
+
+        // The expired geo data is served at once, while a single lookup refreshes it
+        assertEquals(Collections.nCopies(3, ALLOWED), requests(configuration, "1.2.3.4", 3).get(10, TimeUnit.SECONDS));
+        assertEquals(Collections.nCopies(2, ALLOWED), requests(configuration, "1.2.3.4", 2).get(10, TimeUnit.SECONDS));
+
+        Message<Object> refresh = lookups.poll(10, TimeUnit.SECONDS);
+        assertNotNull(refresh);
+        assertEquals(2, sent.get());
+
+        // Once replied, the refreshed geo data is used without any other lookup
+        reply(refresh, "DE");
+        Thread.sleep(100);
+
+        assertEquals(Collections.singletonList("GEOIP_FILTERING_INVALID"), requests(configuration, "1.2.3.4", 1).get(10, TimeUnit.SECONDS));
+        assertEquals(2, sent.get());
+    }
+
+    @Test
+    public void shouldKeepStaleGeoDataWhenRefreshFails() throws Exception {
+        GeoIPFilteringPolicyConfiguration configuration = configuration();
+
+        CompletableFuture<List<String>> first = requests(configuration, "1.2.3.4", 1);
+        reply(lookups.poll(10, TimeUnit.SECONDS), "FR");
+        assertEquals(Collections.singletonList(ALLOWED), first.get(10, TimeUnit.SECONDS));
+
+        Thread.sleep(1100);
+
+        assertEquals(Collections.singletonList(ALLOWED), requests(configuration, "1.2.3.4", 1).get(10, TimeUnit.SECONDS));
+        lookups.poll(10, TimeUnit.SECONDS).fail(500, "Unavailable");
+        Thread.sleep(100);
+
+        // The stale geo data is still served, and refreshed again by the next request
+        assertEquals(Collections.singletonList(ALLOWED), requests(configuration, "1.2.3.4", 1).get(10, TimeUnit.SECONDS));
+        assertNotNull(lookups.poll(10, TimeUnit.SECONDS));
+        assertEquals(3, sent.get());
+    }
+
+    /**
+     * Filters the given number of requests from the same remote address, all within a single task of the event loop.
+     */
+    private CompletableFuture<List<String>> requests(GeoIPFilteringPolicyConfiguration configuration, String remoteAddress, int count) {
+        CompletableFuture<List<String>> outcomes = new CompletableFuture<>();
+
+        context.runOnContext(v -> {
+            List<String> results = new ArrayList<>(count);
+            GeoIPFilteringPolicy policy = new GeoIPFilteringPolicy(configuration);
+
+            for (int i = 0; i < count; i++) {
+                policy.onRequest(
+                    Stubs.request(remoteAddress),
+                    Stubs.response(),
+                    Stubs.executionContext(vertx),
+                    new PolicyChain() {
+                        @Override
+                        public void doNext(Request request, Response response) {
+                            complete(ALLOWED);
+                        }
+
+                        @Override
+                        public void failWith(PolicyResult policyResult) {
+                            complete(policyResult.key());
+                        }
+
+                        @Override
+                        public void streamFailWith(PolicyResult policyResult) {
+                            failWith(policyResult);
+                        }
+
+                        private void complete(String outcome) {
+                            results.add(outcome);
+
+                            if (results.size() == count) {
+                                outcomes.complete(results);
+                            }
+                        }
+                    }
+                );
+            }
+        });
+
+        return outcomes;
+    }
+
+    private static void reply(Message<Object> lookup, String country) {
+        lookup.reply(new JsonObject().put("country_iso_code", country));
+    }
+
+    private static GeoIPFilteringPolicyConfiguration configuration() {
+        Rule rule = new Rule();
+        rule.setType(RuleType.COUNTRY);
+        rule.setCountry("FR");
+
+        CacheConfiguration cache = new CacheConfiguration();
+        cache.setEnabled(true);
+        cache.setTtl(1);
+        cache.setStaleWhileRevalidate(true);
+
+        GeoIPFilteringPolicyConfiguration configuration = new GeoIPFilteringPolicyConfiguration();
+        configuration.setWhitelistRules(Collections.singletonList(rule));
+        configuration.setCache(cache);
+
+        return configuration;
+    }
+}
@@ -0,0 +1,356 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering;
+
+import io.gravitee.gateway.api.ExecutionContext;
+import io.gravitee.gateway.api.Request;
+import io.gravitee.gateway.api.Response;
+import io.gravitee.policy.api.PolicyChain;
+import io.gravitee.policy.api.PolicyResult;
+import io.gravitee.policy.geoipfiltering.configuration.CacheConfiguration;
+import io.gravitee.policy.geoipfiltering.configuration.CacheEviction;
+import io.gravitee.policy.geoipfiltering.configuration.CacheType;
+import io.gravitee.policy.geoipfiltering.configuration.GeoIPFilteringPolicyConfiguration;
+import io.gravitee.policy.geoipfiltering.configuration.LookupConfiguration;
+import io.gravitee.policy.geoipfiltering.configuration.TimeoutAction;
+import io.gravitee.policy.geoipfiltering.lookup.StandInGeoIPService;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Drives requests through the policy at a target rate, on Vert.x event loops and against a stand-in geoip service, and
+ * reports the throughput and the latency percentiles.
+ *
+ * Requests are sent at a fixed rate whatever the latency of the previous ones, as a gateway receives them, and their
+ * latency is measured from the time they were due to be sent: a stall of the event loops shows in the percentiles,
+ * instead of slowing down the load. Options are given as <code>name=value</code> arguments:
+ * <ul>
+ *     <li><code>rate</code>: requests per second (10000)</li>
+ *     <li><code>duration</code>, <code>warmup</code>: seconds of measurement (30), and of warm-up before it (10)</li>
+ *     <li><code>eventLoops</code>: event loops the requests are spread over (the number of processors)</li>
+ *     <li><code>addresses</code>: distinct remote addresses (100000), unless a dataset is given</li>
+ *     <li><code>rules</code>: whitelist rules, half COUNTRY and half DISTANCE ones (100)</li>
+ *     <li><code>cache</code>: <code>NONE</code>, <code>LRU</code>, <code>TINY_LFU</code> or <code>OFF_HEAP</code> (LRU),
+ *     and <code>cacheEntries</code> (50000)</li>
+ *     <li><code>batchSize</code>, <code>timeout</code> and <code>timeoutAction</code>: the lookup settings</li>
+ *     <li><code>latencyMedian</code>, <code>latencyP99</code>: the log-normal latency of the geoip service, in
+ *     milliseconds (0.5 and 5)</li>
+ *     <li><code>failureRate</code>: the share of the lookups failed by the geoip service (0)</li>
+ *     <li><code>replies</code>: <code>json</code> for the geoip service to reply with JSON objects as in production, or
+ *     <code>record</code> for records passed by reference (json)</li>
+ *     <li><code>dataset</code>: a CSV file of geo data, see {@link StandInGeoIPService#dataset(Path)}</li>
+ *     <li><code>histogram</code>: a file to write the latency distribution to, to be plotted</li>
+ * </ul>
+ *
+ * @author GraviteeSource Team
+ */
+public final class LoadHarness {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private static final int SEQUENCE_LENGTH = 1 << 20;
+
+    private final Map<String, String> options;
+
+    private final Recorder recorder = new Recorder(3);
+
+    private final LongAdder allowed = new LongAdder();
+
+    private final LongAdder denied = new LongAdder();
+
+    private final Map<String, LongAdder> failures = new HashMap<>();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+
+    private LoadHarness(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+
+            if (separator < 0) {
+                throw new IllegalArgumentException("Options must be given as name=value: " + arg);
+            }
+
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+
+        new LoadHarness(options).run();
+    }
+
+    private void run() throws Exception {
+        int rate = Integer.parseInt(option("rate", "10000"));
+        int duration = Integer.parseInt(option("duration", "30"));
+        int warmup = Integer.parseInt(option("warmup", "10"));
+        int eventLoops = Integer.parseInt(option("eventLoops", String.valueOf(Runtime.getRuntime().availableProcessors())));
+
+        StandInGeoIPService service = options.containsKey("dataset")
+            ? new StandInGeoIPService(StandInGeoIPService.dataset(Paths.get(options.get("dataset"))), true)
+            : new StandInGeoIPService();
+
+        service
+            .logNormalLatency(Double.parseDouble(option("latencyMedian", "0.5")), Double.parseDouble(option("latencyP99", "5")))
+            .failureRate(Double.parseDouble(option("failureRate", "0")))
+            .recordReplies("record".equals(option("replies", "json")));
+
+        Vertx vertx = Vertx.vertx();
+        vertx.deployVerticle(service).toCompletionStage().toCompletableFuture().get();
+
+        GeoIPFilteringPolicyConfiguration configuration = configuration();
+        Request[] requests = requests();
+        Response response = Stubs.response();
+        ExecutionContext executionContext = Stubs.executionContext(vertx);
+
+        Context[] contexts = new Context[eventLoops];
+
+        for (int i = 0; i < eventLoops; i++) {
+            // Each call from outside of Vert.x creates a new context, on the next event loop
+            contexts[i] = vertx.getOrCreateContext();
+        }
+
+        System.out.printf(
+            "Running %d req/s over %d event loops, %ds of warm-up then %ds, with %s%n",
+            rate,
+            eventLoops,
+            warmup,
+            duration,
+            options
+        );
+
+        long start = System.nanoTime();
+        long measureFrom = start + warmup * SECOND;
+        long end = measureFrom + duration * SECOND;
+        long sent = 0;
+
+        for (long now = start; now < end; now = System.nanoTime()) {
+            // Requests are due from the start, one every 1/rate second
+            long due = (long) ((double) (now - start) * rate / SECOND) + 1;
+
+            if (due > sent) {
+                dispatch(contexts, configuration, requests, response, executionContext, sent, due, start, measureFrom, rate);
+                sent = due;
+            }
+
+            LockSupport.parkNanos(100_000);
+        }
+
+        // Wait for the last requests, the requests of the warm-up having never been recorded
+        long drainUntil = System.nanoTime() + 30 * SECOND;
+        while (inFlight.get() > 0 && System.nanoTime() < drainUntil) {
+            Thread.sleep(10);
+        }
+
+        report(recorder.getIntervalHistogram(), duration, sent);
+        vertx.close().toCompletionStage().toCompletableFuture().get();
+    }
+
+    private void dispatch(
+        Context[] contexts,
+        GeoIPFilteringPolicyConfiguration configuration,
+        Request[] requests,
+        Response response,
+        ExecutionContext executionContext,
+        long from,
+        long to,
+        long start,
+        long measureFrom,
+        int rate
+    ) {
+        long count = to - from;
+
+        for (int c = 0; c < contexts.length; c++) {
+            long first = from + count * c / contexts.length;
+            long last = from + count * (c + 1) / contexts.length;
+
+            if (first == last) {
+                continue;
+            }
+
+            contexts[c].runOnContext(v -> {
+                    for (long i = first; i < last; i++) {
+                        long dueAt = start + (long) ((double) i * SECOND / rate);
+                        Request request = requests[(int) (i & (SEQUENCE_LENGTH - 1))];
+
+                        int current = inFlight.incrementAndGet();
+                        peakInFlight.accumulateAndGet(current, Math::max);
+
+                        new GeoIPFilteringPolicy(configuration)
+                            .onRequest(request, response, executionContext, new Outcome(dueAt, dueAt >= measureFrom));
+                    }
+                });
+        }
+    }
+
+    private GeoIPFilteringPolicyConfiguration configuration() {
+        GeoIPFilteringPolicyConfiguration configuration = new GeoIPFilteringPolicyConfiguration();
+        configuration.setWhitelistRules(TrafficMix.rules(null, Integer.parseInt(option("rules", "100")), 42));
+
+        CacheConfiguration cache = new CacheConfiguration();
+        String cacheType = option("cache", "LRU");
+
+        if (!"NONE".equals(cacheType)) {
+            cache.setEnabled(true);
+            cache.setDecisions(true);
+            cache.setMaxEntries(Integer.parseInt(option("cacheEntries", "50000")));
+
+            if ("OFF_HEAP".equals(cacheType)) {
+                cache.setType(CacheType.OFF_HEAP);
+            } else {
+                cache.setEviction(CacheEviction.valueOf(cacheType));
+            }
+        }
+
+        configuration.setCache(cache);
+
+        LookupConfiguration lookup = new LookupConfiguration();
+        lookup.setBatchSize(Integer.parseInt(option("batchSize", "0")));
+        lookup.setTimeout(Long.parseLong(option("timeout", "0")));
+
+        if (options.containsKey("timeoutAction")) {
+            lookup.setTimeoutAction(TimeoutAction.valueOf(options.get("timeoutAction")));
+        }
+
+        configuration.setLookup(lookup);
+
+        return configuration;
+    }
+
+    /**
+     * Returns the requests to send, in the order to send them, cycling through them if there are not enough of them.
+     */
+    private Request[] requests() throws IOException {
+        String[] addresses;
+
+        if (options.containsKey("dataset")) {
+            addresses =
+                Files
+                    .lines(Paths.get(options.get("dataset")))
+                    .filter(line -> !line.isBlank() && !line.startsWith("#"))
+                    .map(line -> line.substring(0, line.indexOf(',')).trim())
+                    .toArray(String[]::new);
+        } else {
+            addresses = TrafficMix.addresses(SEQUENCE_LENGTH, Integer.parseInt(option("addresses", "100000")), 7);
+        }
+
+        Map<String, Request> distinct = new HashMap<>();
+        Request[] requests = new Request[SEQUENCE_LENGTH];
+
+        for (int i = 0; i < SEQUENCE_LENGTH; i++) {
+            requests[i] = distinct.computeIfAbsent(addresses[i % addresses.length], Stubs::request);
+        }
+
+        return requests;
+    }
+
+    private void report(Histogram histogram, int duration, long sent) throws IOException {
+        System.out.printf("Sent %d requests, %d still in flight%n", sent, inFlight.get());
+        System.out.printf("Throughput: %.1f req/s measured over %ds%n", (double) histogram.getTotalCount() / duration, duration);
+        System.out.printf("Allowed: %d, denied: %d, failed: %s%n", allowed.sum(), denied.sum(), failures);
+        System.out.printf("Peak in flight: %d%n", peakInFlight.get());
+        System.out.printf(
+            "Latency (us): p50=%d p90=%d p99=%d p99.9=%d p99.99=%d max=%d%n",
+            micros(histogram.getValueAtPercentile(50)),
+            micros(histogram.getValueAtPercentile(90)),
+            micros(histogram.getValueAtPercentile(99)),
+            micros(histogram.getValueAtPercentile(99.9)),
+            micros(histogram.getValueAtPercentile(99.99)),
+            micros(histogram.getMaxValue())
+        );
+
+        if (options.containsKey("histogram")) {
+            try (PrintStream out = new PrintStream(new FileOutputStream(options.get("histogram")))) {
+                histogram.outputPercentileDistribution(out, 1000.0);
+            }
+        }
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    /**
+     * The policy chain of a request, which records its outcome and its latency.
+     */
+    private final class Outcome implements PolicyChain {
+
+        private final long dueAt;
+
+        private final boolean measured;
+
+        private Outcome(long dueAt, boolean measured) {
+            this.dueAt = dueAt;
+            this.measured = measured;
+        }
+
+        @Override
+        public void doNext(Request request, Response response) {
+            complete(allowed);
+        }
+
+        @Override
+        public void failWith(PolicyResult policyResult) {
+            LongAdder counter;
+
+            if ("GEOIP_FILTERING_INVALID".equals(policyResult.key())) {
+                counter = denied;
+            } else {
+                synchronized (failures) {
+                    counter = failures.computeIfAbsent(policyResult.key(), key -> new LongAdder());
+                }
+            }
+
+            complete(counter);
+        }
+
+        @Override
+        public void streamFailWith(PolicyResult policyResult) {
+            failWith(policyResult);
+        }
+
+        private void complete(LongAdder counter) {
+            inFlight.decrementAndGet();
+
+            if (measured) {
+                counter.increment();
+                recorder.recordValue(Math.max(0, System.nanoTime() - dueAt));
+            }
+        }
+    }
+}
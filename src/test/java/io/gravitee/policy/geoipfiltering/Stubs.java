@@ -0,0 +1,60 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering;
+
+import io.gravitee.gateway.api.ExecutionContext;
+import io.gravitee.gateway.api.Request;
+import io.gravitee.gateway.api.Response;
+import io.vertx.core.Vertx;
+import java.lang.reflect.Proxy;
+
+/**
+ * Stubs of the gateway objects which the policy is called with, for the benchmarks and the load harness.
+ *
+ * @author GraviteeSource Team
+ */
+public final class Stubs {
+
+    private Stubs() {}
+
+    /**
+     * Returns a request which only knows its remote address.
+     */
+    public static Request request(String remoteAddress) {
+        return stub(Request.class, "remoteAddress", remoteAddress);
+    }
+
+    public static Response response() {
+        return stub(Response.class, null, null);
+    }
+
+    /**
+     * Returns an execution context which only provides the given Vert.x instance.
+     */
+    public static ExecutionContext executionContext(Vertx vertx) {
+        return stub(ExecutionContext.class, "getComponent", vertx);
+    }
+
+    private static <T> T stub(Class<T> type, String method, Object value) {
+        return type.cast(
+            Proxy.newProxyInstance(
+                type.getClassLoader(),
+                new Class<?>[] { type },
+                (proxy, invoked, args) -> invoked.getName().equals(method) ? value : null
+            )
+        );
+    }
+}
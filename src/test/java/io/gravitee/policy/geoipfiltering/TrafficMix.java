@@ -0,0 +1,189 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering;
+
+import io.gravitee.policy.geoipfiltering.configuration.Rule;
+import io.gravitee.policy.geoipfiltering.configuration.RuleType;
+import io.gravitee.policy.geoipfiltering.lookup.GeoRecord;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates the rules and the traffic which the benchmarks and the load harness run on, from a seed so that runs can be
+ * compared.
+ *
+ * The traffic is global: most requests come from around a few large cities, the others from anywhere, and a small share
+ * of the remote addresses makes most of the requests, a fifth of them being IPv6 addresses.
+ *
+ * @author GraviteeSource Team
+ */
+public final class TrafficMix {
+
+    private static final String[] COUNTRIES = {
+        "US",
+        "CN",
+        "IN",
+        "BR",
+        "DE",
+        "FR",
+        "GB",
+        "JP",
+        "RU",
+        "ID",
+        "NG",
+        "MX",
+        "CA",
+        "AU",
+        "KR",
+        "IT",
+        "ES",
+        "ZA",
+        "AR",
+        "EG",
+    };
+
+    private static final double[][] CITIES = {
+        { 40.71, -74.01 },
+        { 31.23, 121.47 },
+        { 19.08, 72.88 },
+        { -23.55, -46.63 },
+        { 52.52, 13.40 },
+        { 48.86, 2.35 },
+        { 51.51, -0.13 },
+        { 35.68, 139.65 },
+        { 55.76, 37.62 },
+        { -6.21, 106.85 },
+        { 6.52, 3.38 },
+        { 19.43, -99.13 },
+        { 43.65, -79.38 },
+        { -33.87, 151.21 },
+        { 37.57, 126.98 },
+        { 41.90, 12.50 },
+        { 40.42, -3.70 },
+        { -26.20, 28.05 },
+        { -34.60, -58.38 },
+        { 30.04, 31.24 },
+    };
+
+    // Share of the requests coming from around a city, and of the remote addresses being IPv6 ones
+    private static final double CITY_SHARE = 0.8;
+
+    private static final double IPV6_SHARE = 0.2;
+
+    private TrafficMix() {}
+
+    /**
+     * Returns the geo data of the given number of requests.
+     */
+    public static GeoRecord[] records(int size, long seed) {
+        Random random = new Random(seed);
+        GeoRecord[] records = new GeoRecord[size];
+
+        for (int i = 0; i < size; i++) {
+            double latitude;
+            double longitude;
+            String country;
+
+            if (random.nextDouble() < CITY_SHARE) {
+                int city = random.nextInt(CITIES.length);
+                latitude = clamp(CITIES[city][0] + random.nextGaussian(), -90, 90);
+                longitude = CITIES[city][1] + random.nextGaussian();
+                country = COUNTRIES[city];
+            } else {
+                latitude = Math.toDegrees(Math.asin(2 * random.nextDouble() - 1));
+                longitude = 360 * random.nextDouble() - 180;
+                country = code(random);
+            }
+
+            records[i] = new GeoRecord(country, null, null, null, null, latitude, longitude);
+        }
+
+        return records;
+    }
+
+    /**
+     * Returns the remote addresses of the given number of requests, among the given number of distinct addresses.
+     */
+    public static String[] addresses(int size, int distinct, long seed) {
+        Random random = new Random(seed);
+        String[] pool = new String[distinct];
+
+        for (int i = 0; i < distinct; i++) {
+            pool[i] = random.nextDouble() < IPV6_SHARE ? ipv6(random) : ipv4(random);
+        }
+
+        String[] addresses = new String[size];
+
+        for (int i = 0; i < size; i++) {
+            // Skewed towards the first addresses of the pool
+            double skew = random.nextDouble();
+            addresses[i] = pool[(int) (distinct * skew * skew * skew)];
+        }
+
+        return addresses;
+    }
+
+    /**
+     * Returns the given number of rules of the given type, or half of each type if it is <code>null</code>.
+     */
+    public static List<Rule> rules(RuleType type, int count, long seed) {
+        Random random = new Random(seed);
+        List<Rule> rules = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+            Rule rule = new Rule();
+
+            if (type == RuleType.COUNTRY || (type == null && i % 2 == 0)) {
+                rule.setType(RuleType.COUNTRY);
+                rule.setCountry(i < COUNTRIES.length / 2 ? COUNTRIES[i] : code(random));
+            } else {
+                double[] city = CITIES[random.nextInt(CITIES.length)];
+                rule.setType(RuleType.DISTANCE);
+                rule.setLatitude(clamp(city[0] + 5 * random.nextGaussian(), -90, 90));
+                rule.setLongitude(city[1] + 5 * random.nextGaussian());
+                rule.setDistance(10_000 + random.nextInt(490_000));
+            }
+
+            rules.add(rule);
+        }
+
+        return rules;
+    }
+
+    private static String code(Random random) {
+        return new String(new char[] { (char) ('A' + random.nextInt(26)), (char) ('A' + random.nextInt(26)) });
+    }
+
+    private static String ipv4(Random random) {
+        return (1 + random.nextInt(223)) + "." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256);
+    }
+
+    private static String ipv6(Random random) {
+        return String.format(
+            "2%03x:%x:%x:%x::%x",
+            random.nextInt(0x1000),
+            random.nextInt(0x10000),
+            random.nextInt(0x10000),
+            random.nextInt(0x10000),
+            1 + random.nextInt(0xffff)
+        );
+    }
+
+    private static double clamp(double value, double min, double max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import io.gravitee.policy.geoipfiltering.configuration.CacheKeyMode;
+import io.gravitee.policy.geoipfiltering.ip.IpAddress;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/**
+ * @author GraviteeSource Team
+ */
+public class OffHeapCacheTest {
+
+    private static final CompactCodec<Integer> CODEC = new CompactCodec<Integer>() {
+        @Override
+        public short encode(Integer value) {
+            return value.shortValue();
+        }
+
+        @Override
+        public Integer decode(short value) {
+            return (int) value;
+        }
+    };
+
+    @Test
+    public void shouldEvictOldestEntryOfFullProbeWindow() throws Exception {
+        // A single probe window of slots, which all the entries share
+        OffHeapCache<Integer> cache = new OffHeapCache<>(OffHeapCache.PROBES, 1, TimeUnit.HOURS, CacheKeys.ADDRESS, CODEC);
+        IpAddress[] addresses = addresses("192.0.2.", OffHeapCache.PROBES + 1);
+
+        put(cache, addresses[0], 0);
+        // Creation times are kept to the second
+        Thread.sleep(1100);
+
+        for (int i = 1; i < OffHeapCache.PROBES; i++) {
+            put(cache, addresses[i], i);
+        }
+
+        assertEquals(OffHeapCache.PROBES, cache.size());
+        assertEquals(0, cache.getEvictions());
+
+        put(cache, addresses[OffHeapCache.PROBES], OffHeapCache.PROBES);
+
+        assertNull(get(cache, addresses[0]));
+
+        for (int i = 1; i <= OffHeapCache.PROBES; i++) {
+            assertEquals(i, get(cache, addresses[i]).intValue());
+        }
+
+        assertEquals(OffHeapCache.PROBES, cache.size());
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void shouldReplaceEntryOfSameKey() {
+        OffHeapCache<Integer> cache = new OffHeapCache<>(16, 1, TimeUnit.HOURS, CacheKeys.ADDRESS, CODEC);
+        IpAddress address = address("192.0.2.1");
+
+        put(cache, address, 1);
+        put(cache, address, 2);
+
+        assertEquals(2, get(cache, address).intValue());
+        assertEquals(1, cache.size());
+        assertEquals(0, cache.getEvictions());
+    }
+
+    @Test
+    public void shouldExpireEntriesInWholeSeconds() throws Exception {
+        // A time to live of less than a second is rounded up to a second, instead of down to never expire
+        OffHeapCache<Integer> cache = new OffHeapCache<>(16, 100, TimeUnit.MILLISECONDS, CacheKeys.ADDRESS, CODEC);
+        IpAddress address = address("192.0.2.1");
+
+        put(cache, address, 1);
+        Thread.sleep(200);
+
+        assertEquals(1, get(cache, address).intValue());
+
+        // An entry expires within a second after its time to live
+        Thread.sleep(1900);
+
+        assertNull(get(cache, address));
+        assertEquals(1, cache.getStale(address.high(), address.low()).intValue());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void shouldNeverExpireWithoutTtl() throws Exception {
+        OffHeapCache<Integer> cache = new OffHeapCache<>(16, 0, TimeUnit.SECONDS, CacheKeys.ADDRESS, CODEC);
+        IpAddress address = address("192.0.2.1");
+
+        put(cache, address, 1);
+        Thread.sleep(2100);
+
+        assertEquals(1, get(cache, address).intValue());
+    }
+
+    @Test
+    public void shouldFallBackToAddressKeyOfSmallerNetwork() {
+        OffHeapCache<Integer> cache = new OffHeapCache<>(1024, 1, TimeUnit.HOURS, new CacheKeys(CacheKeyMode.NETWORK, 24, 48), CODEC);
+
+        // 192.0.2.0/28 is smaller than a /24, its entries are keyed by address
+        cache.put(address("192.0.2.1").high(), address("192.0.2.1").low(), 28, 1);
+        // 198.51.0.0/16 is larger, its entries are keyed by the /24 the address belongs to
+        cache.put(address("198.51.100.1").high(), address("198.51.100.1").low(), 16, 2);
+
+        assertEquals(1, get(cache, address("192.0.2.1")).intValue());
+        assertNull(get(cache, address("192.0.2.2")));
+        assertEquals(2, get(cache, address("198.51.100.1")).intValue());
+        assertEquals(2, get(cache, address("198.51.100.254")).intValue());
+        assertNull(get(cache, address("198.51.101.1")));
+    }
+
+    private static void put(OffHeapCache<Integer> cache, IpAddress address, int value) {
+        cache.put(address.high(), address.low(), value);
+    }
+
+    private static Integer get(OffHeapCache<Integer> cache, IpAddress address) {
+        return cache.get(address.high(), address.low());
+    }
+
+    private static IpAddress[] addresses(String prefix, int count) {
+        IpAddress[] addresses = new IpAddress[count];
+
+        for (int i = 0; i < count; i++) {
+            addresses[i] = address(prefix + (i + 1));
+        }
+
+        return addresses;
+    }
+
+    private static IpAddress address(String text) {
+        IpAddress address = new IpAddress();
+        address.parse(text);
+        return address;
+    }
+}
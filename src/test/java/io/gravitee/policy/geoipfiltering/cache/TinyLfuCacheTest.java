@@ -0,0 +1,158 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import io.gravitee.policy.geoipfiltering.ip.IpAddress;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/**
+ * Caches of 10 entries: a window of 1 entry, and a main cache of 9 entries, 7 of which protected.
+ *
+ * @author GraviteeSource Team
+ */
+public class TinyLfuCacheTest {
+
+    private static final int MAX_ENTRIES = 10;
+
+    private final TinyLfuCache<String> cache = new TinyLfuCache<>(MAX_ENTRIES, 1, TimeUnit.HOURS, CacheKeys.ADDRESS);
+
+    private final IpAddress[] addresses = new IpAddress[MAX_ENTRIES];
+
+    @Test
+    public void shouldNotAdmitEntrySeenOnceIntoFullMainCache() {
+        fill();
+
+        // Each new entry pushes the one before out of the window, which is not seen more often than the probation victim
+        put("198.51.100.1");
+        put("198.51.100.2");
+
+        assertNull(get("198.51.100.1"));
+        assertNull(get(addresses[MAX_ENTRIES - 1]));
+
+        for (int i = 0; i < MAX_ENTRIES - 1; i++) {
+            assertNotNull(get(addresses[i]));
+        }
+
+        assertEquals(2, cache.getEvictions());
+    }
+
+    @Test
+    public void shouldAdmitEntrySeenMoreOftenThanProbationVictim() {
+        fill();
+
+        // Misses count in the frequency of an address as well
+        for (int i = 0; i < 3; i++) {
+            assertNull(get("198.51.100.1"));
+        }
+
+        put("198.51.100.1");
+        put("198.51.100.2");
+
+        // The eldest entry of the probation segment is evicted in favour of the frequent one
+        assertEquals("198.51.100.1", get("198.51.100.1"));
+        assertNull(get(addresses[0]));
+
+        for (int i = 1; i < MAX_ENTRIES - 1; i++) {
+            assertNotNull(get(addresses[i]));
+        }
+    }
+
+    @Test
+    public void shouldDemoteEldestProtectedEntryToProbation() {
+        fill();
+
+        // Accessed entries are promoted to the protected segment, which only holds 7 of them: the eldest is demoted
+        for (int i = 0; i < MAX_ENTRIES - 2; i++) {
+            assertNotNull(get(addresses[i]));
+        }
+
+        // A frequent entry is admitted into probation, after the demoted one
+        for (int i = 0; i < 3; i++) {
+            assertNull(get("198.51.100.1"));
+        }
+
+        put("198.51.100.1");
+
+        for (int i = 0; i < 2; i++) {
+            assertNull(get("198.51.100.2"));
+        }
+
+        put("198.51.100.2");
+        assertNull(get(addresses[MAX_ENTRIES - 2]));
+
+        // The demoted entry, seen less often than the next candidate, is then evicted before the frequent entry
+        put("198.51.100.3");
+
+        assertNull(get(addresses[0]));
+        assertEquals("198.51.100.1", get("198.51.100.1"));
+        assertEquals("198.51.100.2", get("198.51.100.2"));
+
+        for (int i = 1; i < MAX_ENTRIES - 2; i++) {
+            assertNotNull(get(addresses[i]));
+        }
+    }
+
+    @Test
+    public void shouldExpireEntries() throws Exception {
+        TinyLfuCache<String> cache = new TinyLfuCache<>(MAX_ENTRIES, 100, TimeUnit.MILLISECONDS, CacheKeys.ADDRESS);
+        IpAddress address = address("192.0.2.1");
+
+        cache.put(address.high(), address.low(), "192.0.2.1");
+        assertEquals("192.0.2.1", cache.get(address.high(), address.low()));
+
+        Thread.sleep(150);
+
+        assertNull(cache.get(address.high(), address.low()));
+        assertEquals("192.0.2.1", cache.getStale(address.high(), address.low()));
+    }
+
+    /**
+     * Fills the cache with 10 addresses: the last one in the window, the others in the probation segment.
+     */
+    private void fill() {
+        for (int i = 0; i < MAX_ENTRIES; i++) {
+            addresses[i] = address("192.0.2." + (i + 1));
+            put("192.0.2." + (i + 1));
+        }
+
+        assertEquals(MAX_ENTRIES, cache.size());
+        assertEquals(0, cache.getEvictions());
+    }
+
+    private void put(String text) {
+        IpAddress address = address(text);
+        cache.put(address.high(), address.low(), text);
+    }
+
+    private String get(String text) {
+        return get(address(text));
+    }
+
+    private String get(IpAddress address) {
+        return cache.get(address.high(), address.low());
+    }
+
+    private static IpAddress address(String text) {
+        IpAddress address = new IpAddress();
+        address.parse(text);
+        return address;
+    }
+}
@@ -0,0 +1,254 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.ip;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * @author GraviteeSource Team
+ */
+public class IpAddressTest {
+
+    private static final int ADDRESSES = 200_000;
+
+    private final IpAddress address = new IpAddress();
+
+    @Test
+    public void shouldParseIpv4AddressesAsInetAddress() throws Exception {
+        Random random = new Random(4);
+
+        for (int i = 0; i < ADDRESSES; i++) {
+            int ipv4 = random.nextInt();
+            String text = (ipv4 >>> 24) + "." + ((ipv4 >>> 16) & 0xFF) + "." + ((ipv4 >>> 8) & 0xFF) + "." + (ipv4 & 0xFF);
+
+            assertSameAsInetAddress(text, InetAddress.getByName(text).getAddress());
+            assertTrue(address.isIpv4());
+            assertEquals(ipv4, address.ipv4());
+        }
+    }
+
+    @Test
+    public void shouldParseIpv6AddressesAsInetAddress() throws Exception {
+        Random random = new Random(6);
+        byte[] bytes = new byte[16];
+
+        for (int i = 0; i < ADDRESSES; i++) {
+            random.nextBytes(bytes);
+            // Runs of zero groups, for the addresses to be compressed
+            int zeros = random.nextInt(8);
+            int from = random.nextInt(8 - zeros + 1);
+
+            for (int g = from; g < from + zeros; g++) {
+                bytes[2 * g] = 0;
+                bytes[2 * g + 1] = 0;
+            }
+
+            String full = InetAddress.getByAddress(bytes).getHostAddress();
+
+            assertSameAsInetAddress(full);
+            assertSameAsInetAddress(compressed(bytes, random.nextBoolean()));
+        }
+    }
+
+    @Test
+    public void shouldParseBracketedAddresses() throws Exception {
+        assertSameAsInetAddress("[::1]");
+        assertSameAsInetAddress("[2001:db8::8a2e:370:7334]");
+        assertFalse(address.parse("[1.2.3.4]"));
+        assertFalse(address.parse("[::1"));
+        assertFalse(address.parse("::1]"));
+    }
+
+    @Test
+    public void shouldIgnoreZoneIds() throws Exception {
+        assertSameAsInetAddress("fe80::1%1");
+        assertSameAsInetAddress("[fe80::1%1]");
+        // Interfaces are not looked up, a named zone is only checked to be well-formed
+        assertSameAsInetAddress("fe80::1%eth0", InetAddress.getByName("fe80::1").getAddress());
+        assertFalse(address.parse("fe80::1%"));
+        assertFalse(address.parse("fe80::1%eth/0"));
+        assertFalse(address.parse("1.2.3.4%1"));
+    }
+
+    @Test
+    public void shouldParseIpv4MappedAddressesAsIpv4Addresses() throws Exception {
+        assertSameAsInetAddress("::ffff:1.2.3.4");
+        assertTrue(address.isIpv4());
+        assertEquals(0x01020304, address.ipv4());
+        assertSameAsInetAddress("::ffff:0102:0304");
+        assertTrue(address.isIpv4());
+        assertSameAsInetAddress("::1.2.3.4");
+        assertFalse(address.isIpv4());
+        assertSameAsInetAddress("1:2:3:4:5:6:1.2.3.4");
+    }
+
+    @Test
+    public void shouldRejectZoneOnIpv4MappedAddresses() {
+        assertFalse(address.parse("::ffff:1.2.3.4%1"));
+        assertFalse(address.parse("::ffff:1.2.3.4%eth0"));
+    }
+
+    @Test
+    public void shouldHandleLeadingZeros() throws Exception {
+        assertSameAsInetAddress("0001:0db8:0000:0000:0000:0000:0000:0001");
+        assertSameAsInetAddress("::0001");
+        assertSameAsInetAddress("0.0.0.0");
+        // Octal-looking IPv4 octets are ambiguous, and rejected
+        assertFalse(address.parse("01.2.3.4"));
+        assertFalse(address.parse("1.2.3.004"));
+        assertFalse(address.parse("::ffff:1.02.3.4"));
+        assertFalse(address.parse("00001::"));
+    }
+
+    @Test
+    public void shouldRejectTooManyGroups() {
+        assertRejected("1:2:3:4:5:6:7:8:9");
+        assertRejected("1:2:3:4:5:6:7::8");
+        assertRejected("::1:2:3:4:5:6:7:8");
+        assertRejected("1:2:3:4:5:6:7:1.2.3.4");
+        assertRejected("1:2:3:4:5:6:7:8::");
+    }
+
+    @Test
+    public void shouldRejectMalformedAddresses() {
+        assertRejected("1::2::3");
+        assertRejected(":1:2:3:4:5:6:7");
+        assertRejected("1:2:3:4:5:6:7:");
+        assertRejected("1:2:3:4:5:6:7");
+        assertRejected("g::1");
+        assertRejected("::ffff:1.2.3");
+        assertRejected("::ffff:1.2.3.256");
+        assertRejected("::1.2.3.4:5");
+        assertFalse(address.parse("1.2.3"));
+        assertFalse(address.parse("1.2.3.4.5"));
+        assertFalse(address.parse("256.0.0.1"));
+        assertFalse(address.parse("localhost"));
+        assertFalse(address.parse(""));
+        assertFalse(address.parse(null));
+    }
+
+    @Test
+    public void shouldLeaveAddressUnchangedWhenRejected() {
+        assertTrue(address.parse("2001:db8::1"));
+        long high = address.high();
+        long low = address.low();
+
+        assertFalse(address.parse("2001:db8::1::"));
+        assertEquals(high, address.high());
+        assertEquals(low, address.low());
+    }
+
+    private void assertSameAsInetAddress(String text) throws UnknownHostException {
+        assertSameAsInetAddress(text, InetAddress.getByName(text).getAddress());
+    }
+
+    private void assertSameAsInetAddress(String text, byte[] expected) {
+        assertTrue(text, address.parse(text));
+        assertEquals(text, high(expected), address.high());
+        assertEquals(text, low(expected), address.low());
+    }
+
+    /**
+     * Asserts that an IPv6 address is rejected by both parsers. Only texts with colons are given to
+     * {@link InetAddress#getByName(String)}, which never resolves them as host names.
+     */
+    private void assertRejected(String text) {
+        assertFalse(text, address.parse(text));
+
+        try {
+            InetAddress.getByName(text);
+            throw new AssertionError("InetAddress accepts " + text);
+        } catch (UnknownHostException e) {
+            // Expected
+        }
+    }
+
+    private static long high(byte[] bytes) {
+        return bytes.length == 4 ? 0 : bits(bytes, 0);
+    }
+
+    private static long low(byte[] bytes) {
+        if (bytes.length == 4) {
+            return 0xFFFF00000000L | (bits(bytes, 0) >>> 32);
+        }
+
+        return bits(bytes, 8);
+    }
+
+    private static long bits(byte[] bytes, int from) {
+        long bits = 0;
+
+        for (int i = from; i < from + 8; i++) {
+            bits = (bits << 8) | (i < bytes.length ? bytes[i] & 0xFF : 0);
+        }
+
+        return bits;
+    }
+
+    /**
+     * Formats an IPv6 address with its longest run of zero groups compressed, in upper or lower case.
+     */
+    private static String compressed(byte[] bytes, boolean upperCase) {
+        int[] groups = new int[8];
+
+        for (int g = 0; g < 8; g++) {
+            groups[g] = ((bytes[2 * g] & 0xFF) << 8) | (bytes[2 * g + 1] & 0xFF);
+        }
+
+        int runStart = -1;
+        int runLength = 0;
+
+        for (int g = 0; g < 8;) {
+            int length = 0;
+
+            while (g + length < 8 && groups[g + length] == 0) {
+                length++;
+            }
+
+            if (length > runLength) {
+                runStart = g;
+                runLength = length;
+            }
+
+            g += Math.max(length, 1);
+        }
+
+        StringBuilder text = new StringBuilder();
+
+        for (int g = 0; g < 8; g++) {
+            if (g == runStart) {
+                text.append("::");
+                g += runLength - 1;
+                continue;
+            }
+
+            if (text.length() > 0 && text.charAt(text.length() - 1) != ':') {
+                text.append(':');
+            }
+
+            text.append(Integer.toHexString(groups[g]));
+        }
+
+        return upperCase ? text.toString().toUpperCase() : text.toString();
+    }
+}
@@ -0,0 +1,469 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.lookup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.test.fakecluster.FakeClusterManager;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Looks up addresses from a node of a gateway clustered with a second one, both running in this JVM.
+ *
+ * @author GraviteeSource Team
+ */
+public class GeoIPLookupTest {
+
+    private static final DeliveryOptions LOCAL_ONLY = new DeliveryOptions().setLocalOnly(true).setSendTimeout(5000);
+
+    private static final DeliveryOptions SHORT_TIMEOUT = new DeliveryOptions().setLocalOnly(true).setSendTimeout(100);
+
+    private Vertx local;
+
+    private Vertx remote;
+
+    private Context context;
+
+    // The number of addresses looked up by lookups(int, LookupBatch), for each of them to be distinct
+    private int lookupsMade;
+
+    // The number of batches sent by the last call to lookups(int, LookupBatch) within its task
+    private CompletableFuture<Integer> batchesSentWithinTask;
+
+    private final AtomicInteger localLookups = new AtomicInteger();
+
+    private final AtomicInteger remoteLookups = new AtomicInteger();
+
+    // Lookups sent by the local node, whether or not any geoip service receives them
+    private final AtomicInteger sent = new AtomicInteger();
+
+    // Batches sent by the local node, whether or not any geoip service receives them
+    private final AtomicInteger batches = new AtomicInteger();
+
+    @Before
+    public void startCluster() throws Exception {
+        local = clusteredVertx();
+        remote = clusteredVertx();
+        context = local.getOrCreateContext();
+
+        local
+            .eventBus()
+            .addOutboundInterceptor(delivery -> {
+                if (GeoIPLookup.GEOIP_SERVICE.equals(delivery.message().address())) {
+                    sent.incrementAndGet();
+                } else if (GeoIPLookup.GEOIP_BATCH_SERVICE.equals(delivery.message().address())) {
+                    batches.incrementAndGet();
+                }
+                delivery.next();
+            });
+    }
+
+    @After
+    public void stopCluster() throws Exception {
+        CompletableFuture<Void> closed = new CompletableFuture<>();
+
+        local.close(done -> remote.close(done2 -> closed.complete(null)));
+        closed.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void shouldLookupFromLocalServiceOnly() throws Exception {
+        register(local, "FR", localLookups);
+        register(remote, "DE", remoteLookups);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals("FR", lookup("1.2.3." + i).result().getCountryIsoCode());
+        }
+
+        assertEquals(10, localLookups.get());
+        assertEquals(0, remoteLookups.get());
+        assertEquals(10, sent.get());
+    }
+
+    @Test
+    public void shouldFallBackToClusterOnceWithoutLocalService() throws Exception {
+        register(remote, "DE", remoteLookups);
+
+        // The first lookup is sent locally, then to the cluster
+        assertEquals("DE", lookup("1.2.3.4").result().getCountryIsoCode());
+        assertEquals(1, remoteLookups.get());
+        assertEquals(2, sent.get());
+
+        // Later ones are directly sent to the cluster
+        for (int i = 0; i < 10; i++) {
+            assertEquals("DE", lookup("1.2.4." + i).result().getCountryIsoCode());
+        }
+
+        assertEquals(11, remoteLookups.get());
+        assertEquals(12, sent.get());
+        assertEquals(0, localLookups.get());
+    }
+
+    @Test
+    public void shouldProbeLocalServiceAgainOnceDeployed() throws Exception {
+        register(remote, "DE", remoteLookups);
+
+        assertEquals("DE", lookup("1.2.3.4").result().getCountryIsoCode());
+        assertEquals(1, remoteLookups.get());
+
+        // The local service is deployed after the first lookups, and found once the event loop probes it again
+        register(local, "FR", localLookups);
+        Thread.sleep(1100);
+
+        assertEquals("FR", lookup("1.2.3.5").result().getCountryIsoCode());
+        assertEquals("FR", lookup("1.2.3.6").result().getCountryIsoCode());
+        assertEquals(2, localLookups.get());
+        assertEquals(1, remoteLookups.get());
+        assertEquals(4, sent.get());
+    }
+
+    @Test
+    public void shouldCoalesceLookupsWithSameDelivery() throws Exception {
+        register(local, "FR", localLookups);
+
+        CompletableFuture<AsyncResult<GeoRecord>> first = new CompletableFuture<>();
+        CompletableFuture<AsyncResult<GeoRecord>> second = new CompletableFuture<>();
+
+        context.runOnContext(v -> {
+            GeoIPLookup.lookup(local, "1.2.3.4", new DeliveryOptions().setSendTimeout(1000), null, null, first::complete);
+            GeoIPLookup.lookup(local, "1.2.3.4", new DeliveryOptions().setSendTimeout(1000), null, null, second::complete);
+        });
+
+        assertEquals("FR", first.get(10, TimeUnit.SECONDS).result().getCountryIsoCode());
+        assertEquals("FR", second.get(10, TimeUnit.SECONDS).result().getCountryIsoCode());
+        assertEquals(1, sent.get());
+        assertEquals(1, localLookups.get());
+    }
+
+    @Test
+    public void shouldNotWaitForLookupWithLongerTimeout() throws Exception {
+        // A geoip service which never replies
+        register(local, (String) null, localLookups);
+
+        CompletableFuture<AsyncResult<GeoRecord>> slow = new CompletableFuture<>();
+        CompletableFuture<AsyncResult<GeoRecord>> fast = new CompletableFuture<>();
+
+        context.runOnContext(v -> {
+            GeoIPLookup.lookup(local, "1.2.3.4", new DeliveryOptions().setSendTimeout(30000), null, null, slow::complete);
+            GeoIPLookup.lookup(local, "1.2.3.4", new DeliveryOptions().setSendTimeout(100), null, null, fast::complete);
+        });
+
+        AsyncResult<GeoRecord> result = fast.get(2, TimeUnit.SECONDS);
+
+        assertTrue(GeoIPLookup.isTimeout(result.cause()));
+        assertEquals(2, sent.get());
+    }
+
+    @Test
+    public void shouldAttachToProbeOfHalfOpenCircuitBreaker() throws Exception {
+        register(local, "FR", localLookups);
+
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 50, TimeUnit.MILLISECONDS);
+        circuitBreaker.onFailure();
+        Thread.sleep(100);
+
+        CompletableFuture<AsyncResult<GeoRecord>> probe = new CompletableFuture<>();
+        CompletableFuture<AsyncResult<GeoRecord>> attached = new CompletableFuture<>();
+
+        context.runOnContext(v -> {
+            GeoIPLookup.lookup(local, "1.2.3.4", LOCAL_ONLY, circuitBreaker, null, probe::complete);
+            GeoIPLookup.lookup(local, "1.2.3.4", LOCAL_ONLY, circuitBreaker, null, attached::complete);
+        });
+
+        assertEquals("FR", probe.get(10, TimeUnit.SECONDS).result().getCountryIsoCode());
+        assertEquals("FR", attached.get(10, TimeUnit.SECONDS).result().getCountryIsoCode());
+        assertEquals(1, sent.get());
+        assertFalse(circuitBreaker.isOpen());
+    }
+
+    @Test
+    public void shouldOpenCircuitAfterConsecutiveLookupsWithoutReply() throws Exception {
+        register(local, (String) null, localLookups);
+        CircuitBreaker circuitBreaker = new CircuitBreaker(2, 10, TimeUnit.SECONDS);
+
+        assertTrue(GeoIPLookup.isTimeout(lookup("1.2.3.4", SHORT_TIMEOUT, circuitBreaker).cause()));
+        assertFalse(circuitBreaker.isOpen());
+        assertTrue(GeoIPLookup.isTimeout(lookup("1.2.3.5", SHORT_TIMEOUT, circuitBreaker).cause()));
+        assertTrue(circuitBreaker.isOpen());
+
+        // Lookups are then rejected without being sent
+        assertTrue(GeoIPLookup.isCircuitOpen(lookup("1.2.3.6", SHORT_TIMEOUT, circuitBreaker).cause()));
+        assertEquals(2, sent.get());
+    }
+
+    @Test
+    public void shouldResetFailuresOnReply() throws Exception {
+        AtomicReference<String> country = new AtomicReference<>();
+        register(local, country, localLookups);
+        CircuitBreaker circuitBreaker = new CircuitBreaker(2, 10, TimeUnit.SECONDS);
+
+        assertTrue(GeoIPLookup.isTimeout(lookup("1.2.3.4", SHORT_TIMEOUT, circuitBreaker).cause()));
+
+        country.set("FR");
+        assertEquals("FR", lookup("1.2.3.5", SHORT_TIMEOUT, circuitBreaker).result().getCountryIsoCode());
+
+        // The failure before the reply is forgotten
+        country.set(null);
+        assertTrue(GeoIPLookup.isTimeout(lookup("1.2.3.6", SHORT_TIMEOUT, circuitBreaker).cause()));
+        assertFalse(circuitBreaker.isOpen());
+    }
+
+    @Test
+    public void shouldLetSingleProbeThroughHalfOpenCircuit() throws Exception {
+        AtomicReference<String> country = new AtomicReference<>();
+        register(local, country, localLookups);
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 200, TimeUnit.MILLISECONDS);
+
+        assertTrue(GeoIPLookup.isTimeout(lookup("1.2.3.4", SHORT_TIMEOUT, circuitBreaker).cause()));
+        assertTrue(GeoIPLookup.isCircuitOpen(lookup("1.2.3.5", SHORT_TIMEOUT, circuitBreaker).cause()));
+        Thread.sleep(250);
+
+        // Once the reset timeout has elapsed, a single lookup probes the service, the others being rejected meanwhile
+        CompletableFuture<AsyncResult<GeoRecord>> probe = new CompletableFuture<>();
+        CompletableFuture<AsyncResult<GeoRecord>> rejected = new CompletableFuture<>();
+
+        context.runOnContext(v -> {
+            GeoIPLookup.lookup(local, "1.2.3.6", SHORT_TIMEOUT, circuitBreaker, null, probe::complete);
+            GeoIPLookup.lookup(local, "1.2.3.7", SHORT_TIMEOUT, circuitBreaker, null, rejected::complete);
+        });
+
+        assertTrue(GeoIPLookup.isCircuitOpen(rejected.get(10, TimeUnit.SECONDS).cause()));
+        assertTrue(GeoIPLookup.isTimeout(probe.get(10, TimeUnit.SECONDS).cause()));
+        assertEquals(2, sent.get());
+
+        // A failed probe keeps the circuit open for another reset timeout, a successful one closes it
+        assertTrue(GeoIPLookup.isCircuitOpen(lookup("1.2.3.8", SHORT_TIMEOUT, circuitBreaker).cause()));
+        Thread.sleep(250);
+
+        country.set("FR");
+        assertEquals("FR", lookup("1.2.3.9", SHORT_TIMEOUT, circuitBreaker).result().getCountryIsoCode());
+        assertFalse(circuitBreaker.isOpen());
+        assertEquals("FR", lookup("1.2.3.10", SHORT_TIMEOUT, circuitBreaker).result().getCountryIsoCode());
+        assertEquals(4, sent.get());
+    }
+
+    @Test
+    public void shouldSendBatchAsSoonAsFull() throws Exception {
+        registerBatch(local, "FR");
+        LookupBatch batch = new LookupBatch(4);
+
+        List<CompletableFuture<AsyncResult<GeoRecord>>> results = lookups(5, batch);
+
+        // The first four lookups are sent within the task which made them, the fifth one once it is done
+        assertEquals(1, batchesSentWithinTask.get(10, TimeUnit.SECONDS).intValue());
+
+        for (CompletableFuture<AsyncResult<GeoRecord>> result : results) {
+            assertEquals("FR", result.get(10, TimeUnit.SECONDS).result().getCountryIsoCode());
+        }
+
+        assertEquals(2, batches.get());
+        assertEquals(0, sent.get());
+    }
+
+    @Test
+    public void shouldSendBatchOnNextLoopIteration() throws Exception {
+        registerBatch(local, "FR");
+        LookupBatch batch = new LookupBatch(4);
+
+        List<CompletableFuture<AsyncResult<GeoRecord>>> results = lookups(3, batch);
+
+        assertEquals(0, batchesSentWithinTask.get(10, TimeUnit.SECONDS).intValue());
+
+        for (CompletableFuture<AsyncResult<GeoRecord>> result : results) {
+            assertEquals("FR", result.get(10, TimeUnit.SECONDS).result().getCountryIsoCode());
+        }
+
+        assertEquals(1, batches.get());
+        assertEquals(0, sent.get());
+    }
+
+    @Test
+    public void shouldSplitBatchWithoutBatchService() throws Exception {
+        register(local, "FR", localLookups);
+        LookupBatch batch = new LookupBatch(4);
+
+        // The batch is not handled, its lookups are then sent one by one
+        for (CompletableFuture<AsyncResult<GeoRecord>> result : lookups(3, batch)) {
+            assertEquals("FR", result.get(10, TimeUnit.SECONDS).result().getCountryIsoCode());
+        }
+
+        assertEquals(1, batches.get());
+        assertEquals(3, sent.get());
+
+        // Later lookups are directly sent one by one
+        for (CompletableFuture<AsyncResult<GeoRecord>> result : lookups(3, batch)) {
+            assertEquals("FR", result.get(10, TimeUnit.SECONDS).result().getCountryIsoCode());
+        }
+
+        assertEquals(1, batches.get());
+        assertEquals(6, sent.get());
+        assertEquals(6, localLookups.get());
+
+        // Until the batch service is probed again
+        registerBatch(local, "DE");
+        Thread.sleep(1100);
+
+        for (CompletableFuture<AsyncResult<GeoRecord>> result : lookups(3, batch)) {
+            assertEquals("DE", result.get(10, TimeUnit.SECONDS).result().getCountryIsoCode());
+        }
+
+        assertEquals(2, batches.get());
+        assertEquals(6, sent.get());
+    }
+
+    /**
+     * Looks up the given number of distinct addresses within a single task of the event loop, gathered into the given
+     * batch, then completes {@link #batchesSentWithinTask}.
+     */
+    private List<CompletableFuture<AsyncResult<GeoRecord>>> lookups(int count, LookupBatch batch) {
+        List<CompletableFuture<AsyncResult<GeoRecord>>> results = new ArrayList<>(count);
+        int previousBatches = batches.get();
+        int offset = lookupsMade;
+
+        for (int i = 0; i < count; i++) {
+            results.add(new CompletableFuture<>());
+        }
+
+        lookupsMade += count;
+        batchesSentWithinTask = new CompletableFuture<>();
+        CompletableFuture<Integer> withinTask = batchesSentWithinTask;
+
+        context.runOnContext(v -> {
+            for (int i = 0; i < count; i++) {
+                GeoIPLookup.lookup(local, "1.2.3." + (offset + i), LOCAL_ONLY, null, batch, results.get(i)::complete);
+            }
+
+            withinTask.complete(batches.get() - previousBatches);
+        });
+
+        return results;
+    }
+
+    private AsyncResult<GeoRecord> lookup(String address, DeliveryOptions options, CircuitBreaker circuitBreaker) throws Exception {
+        CompletableFuture<AsyncResult<GeoRecord>> result = new CompletableFuture<>();
+
+        context.runOnContext(v -> GeoIPLookup.lookup(local, address, options, circuitBreaker, null, result::complete));
+
+        return result.get(10, TimeUnit.SECONDS);
+    }
+
+    private AsyncResult<GeoRecord> lookup(String address) throws Exception {
+        CompletableFuture<AsyncResult<GeoRecord>> result = new CompletableFuture<>();
+
+        // Lookups fall back per event loop, they are then all made from the same one
+        context.runOnContext(v -> GeoIPLookup.lookup(local, address, LOCAL_ONLY, null, null, result::complete));
+
+        AsyncResult<GeoRecord> lookup = result.get(10, TimeUnit.SECONDS);
+
+        if (lookup.failed()) {
+            throw new AssertionError("Lookup of " + address + " failed", lookup.cause());
+        }
+
+        return lookup;
+    }
+
+    /**
+     * Registers a geoip service replying with the given country to all the lookups, or never replying if it is
+     * <code>null</code>.
+     */
+    private static void register(Vertx vertx, String country, AtomicInteger lookups) throws Exception {
+        register(vertx, new AtomicReference<>(country), lookups);
+    }
+
+    /**
+     * Registers a geoip service replying with the current country, or not replying while it is <code>null</code>.
+     */
+    private static void register(Vertx vertx, AtomicReference<String> country, AtomicInteger lookups) throws Exception {
+        CompletableFuture<Void> registered = new CompletableFuture<>();
+
+        vertx
+            .eventBus()
+            .<String>consumer(
+                GeoIPLookup.GEOIP_SERVICE,
+                message -> {
+                    lookups.incrementAndGet();
+
+                    String replied = country.get();
+
+                    if (replied != null) {
+                        message.reply(new JsonObject().put("country_iso_code", replied));
+                    }
+                }
+            )
+            .completionHandler(done -> registered.complete(null));
+
+        registered.get(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Registers a geoip service replying to batches with the given country for all their addresses.
+     */
+    private static void registerBatch(Vertx vertx, String country) throws Exception {
+        CompletableFuture<Void> registered = new CompletableFuture<>();
+
+        vertx
+            .eventBus()
+            .<JsonArray>consumer(
+                GeoIPLookup.GEOIP_BATCH_SERVICE,
+                message -> {
+                    JsonArray replies = new JsonArray();
+
+                    for (int i = 0; i < message.body().size(); i++) {
+                        replies.add(new JsonObject().put("country_iso_code", country));
+                    }
+
+                    message.reply(replies);
+                }
+            )
+            .completionHandler(done -> registered.complete(null));
+
+        registered.get(10, TimeUnit.SECONDS);
+    }
+
+    private static Vertx clusteredVertx() throws Exception {
+        CompletableFuture<Vertx> vertx = new CompletableFuture<>();
+
+        Vertx.clusteredVertx(
+            new VertxOptions().setClusterManager(new FakeClusterManager()),
+            started -> {
+                if (started.succeeded()) {
+                    vertx.complete(started.result());
+                } else {
+                    vertx.completeExceptionally(started.cause());
+                }
+            }
+        );
+
+        return vertx.get(30, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,243 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.lookup;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Promise;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.DoubleSupplier;
+import java.util.function.Function;
+
+/**
+ * A stand-in for the geoip service, to run the policy against in tests, benchmarks and load tests without a MaxMind
+ * database.
+ *
+ * It replies with geo data in JSON as the geoip service does, a JSON object to a single lookup, failed if the address
+ * has no geo data, and an array of them to a batch, so that the policy decodes every reply as in production. Single
+ * lookups may be replied with {@link GeoRecord}s instead, to measure the policy without that decoding. By default, the
+ * geo data of an address is derived from its hash, among a few countries, and replies are immediate. A latency
+ * distribution and a failure rate can be set before the service is deployed, a batch being delayed or failed as a whole.
+ *
+ * @author GraviteeSource Team
+ */
+public class StandInGeoIPService extends AbstractVerticle {
+
+    private static final GeoRecord[] RECORDS = {
+        new GeoRecord("FR", "France", "Ile-de-France", "Paris", "Europe/Paris", 48.8566, 2.3522),
+        new GeoRecord("US", "United States", "California", "San Francisco", "America/Los_Angeles", 37.7749, -122.4194),
+        new GeoRecord("DE", "Germany", "Berlin", "Berlin", "Europe/Berlin", 52.52, 13.405),
+        new GeoRecord("JP", "Japan", "Tokyo", "Tokyo", "Asia/Tokyo", 35.6762, 139.6503),
+        new GeoRecord("BR", "Brazil", "Sao Paulo", "Sao Paulo", "America/Sao_Paulo", -23.5505, -46.6333),
+    };
+
+    private static final DeliveryOptions RECORD_REPLY = new DeliveryOptions().setCodecName(GeoRecordCodec.NAME);
+
+    // The standard normal quantile of 0.99
+    private static final double Z_99 = 2.326348;
+
+    private final Function<String, GeoRecord> resolver;
+
+    private final boolean batches;
+
+    // Only used from the event loop of the service
+    private final Random random = new Random(42);
+
+    private DoubleSupplier latency;
+
+    private double failureRate;
+
+    private boolean recordReplies;
+
+    private MessageConsumer<String> consumer;
+
+    private MessageConsumer<JsonArray> batchConsumer;
+
+    public StandInGeoIPService() {
+        this(StandInGeoIPService::resolve, true);
+    }
+
+    /**
+     * Creates a service which looks up addresses with the given resolver, <code>null</code> meaning no geo data, and
+     * which handles batches or not.
+     */
+    public StandInGeoIPService(Function<String, GeoRecord> resolver, boolean batches) {
+        this.resolver = resolver;
+        this.batches = batches;
+    }
+
+    public static GeoRecord resolve(String address) {
+        return RECORDS[Math.floorMod(address.hashCode(), RECORDS.length)];
+    }
+
+    /**
+     * Loads a dataset of geo data, from a CSV file of <code>address,country_iso_code[,latitude,longitude]</code> lines,
+     * lines starting with <code>#</code> being ignored. The returned resolver has no geo data for the other addresses.
+     */
+    public static Function<String, GeoRecord> dataset(Path csv) throws IOException {
+        Map<String, GeoRecord> records = new HashMap<>();
+
+        for (String line : Files.readAllLines(csv, StandardCharsets.UTF_8)) {
+            if (line.isBlank() || line.startsWith("#")) {
+                continue;
+            }
+
+            String[] fields = line.split(",");
+            double latitude = fields.length > 3 ? Double.parseDouble(fields[2].trim()) : Double.NaN;
+            double longitude = fields.length > 3 ? Double.parseDouble(fields[3].trim()) : Double.NaN;
+
+            records.put(fields[0].trim(), new GeoRecord(fields[1].trim(), null, null, null, null, latitude, longitude));
+        }
+
+        return records::get;
+    }
+
+    /**
+     * Delays replies by the given number of milliseconds, rounded to the millisecond of Vert.x timers.
+     */
+    public StandInGeoIPService latency(DoubleSupplier latency) {
+        this.latency = latency;
+        return this;
+    }
+
+    /**
+     * Delays replies along a log-normal distribution of the given median and 99th percentile, in milliseconds, as the
+     * response times of remote services usually are.
+     */
+    public StandInGeoIPService logNormalLatency(double median, double p99) {
+        double mu = Math.log(median);
+        double sigma = (Math.log(p99) - mu) / Z_99;
+
+        return latency(() -> Math.exp(mu + sigma * random.nextGaussian()));
+    }
+
+    /**
+     * Fails the given share of the lookups, as the geoip service does on an internal error.
+     */
+    public StandInGeoIPService failureRate(double failureRate) {
+        this.failureRate = failureRate;
+        return this;
+    }
+
+    /**
+     * Replies to single lookups with records passed by reference, as only a replier loaded along with the policy can,
+     * rather than with JSON objects.
+     */
+    public StandInGeoIPService recordReplies(boolean recordReplies) {
+        this.recordReplies = recordReplies;
+        return this;
+    }
+
+    @Override
+    public void start(Promise<Void> startPromise) {
+        if (recordReplies) {
+            GeoRecordCodec.register(vertx);
+        }
+
+        consumer = vertx.eventBus().consumer(GeoIPLookup.GEOIP_SERVICE, message -> delay(() -> lookup(message)));
+
+        if (batches) {
+            batchConsumer = vertx.eventBus().consumer(GeoIPLookup.GEOIP_BATCH_SERVICE, message -> delay(() -> lookupBatch(message)));
+        }
+
+        startPromise.complete();
+    }
+
+    @Override
+    public void stop() {
+        consumer.unregister();
+
+        if (batchConsumer != null) {
+            batchConsumer.unregister();
+        }
+    }
+
+    private void delay(Runnable reply) {
+        long delay = latency != null ? Math.round(latency.getAsDouble()) : 0;
+
+        if (delay > 0) {
+            vertx.setTimer(delay, id -> reply.run());
+        } else {
+            reply.run();
+        }
+    }
+
+    private boolean fails(Message<?> message) {
+        if (failureRate > 0 && random.nextDouble() < failureRate) {
+            message.fail(500, "Stand-in failure");
+            return true;
+        }
+
+        return false;
+    }
+
+    private void lookup(Message<String> message) {
+        if (fails(message)) {
+            return;
+        }
+
+        GeoRecord record = resolver.apply(message.body());
+
+        if (record == null) {
+            message.fail(404, "No geo data for " + message.body());
+        } else if (recordReplies) {
+            message.reply(record, RECORD_REPLY);
+        } else {
+            message.reply(toJson(record));
+        }
+    }
+
+    private void lookupBatch(Message<JsonArray> message) {
+        if (fails(message)) {
+            return;
+        }
+
+        JsonArray addresses = message.body();
+        JsonArray replies = new JsonArray();
+
+        for (int i = 0; i < addresses.size(); i++) {
+            GeoRecord record = resolver.apply(addresses.getString(i));
+            replies.add(record == null ? null : toJson(record));
+        }
+
+        message.reply(replies);
+    }
+
+    private static JsonObject toJson(GeoRecord record) {
+        JsonObject geoData = new JsonObject()
+            .put("country_iso_code", record.getCountryIsoCode())
+            .put("country_name", record.getCountryName())
+            .put("region_name", record.getRegionName())
+            .put("city_name", record.getCityName())
+            .put("timezone", record.getTimezone());
+
+        if (!Double.isNaN(record.getLatitude())) {
+            geoData.put("lat", record.getLatitude()).put("lon", record.getLongitude());
+        }
+
+        return geoData;
+    }
+}
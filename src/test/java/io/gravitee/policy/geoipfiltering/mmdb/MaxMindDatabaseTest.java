@@ -0,0 +1,215 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.mmdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import io.gravitee.policy.geoipfiltering.ip.IpAddress;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+/**
+ * Looks up the fixtures written by {@link MaxMindDatabaseWriter}, which hold the same networks with 24, 28 and 32 bits
+ * records, in IPv4 and IPv6 search trees:
+ * <ul>
+ *     <li><code>1.2.3.0/24</code>: FR, with values of every extended type before the country, keys given as pointers
+ *     and the country through a 1 byte pointer</li>
+ *     <li><code>10.0.0.0/8</code>: a location given as floats, and only a registered country</li>
+ *     <li><code>5.6.0.0/16</code>, <code>2001:db8::/32</code>: DE, through a 2 bytes pointer (offset 2048), and its
+ *     location through a 4 bytes pointer</li>
+ *     <li><code>9.9.9.9/32</code>, <code>2001:db8:1::/48</code>: JP, through a 3 bytes pointer (offset 526336) in the
+ *     28 and 32 bits fixtures, and a 2 bytes one otherwise</li>
+ *     <li><code>100.64.0.0/10</code>: BR, in the 28 bits fixture only, its record lying past 2^24 so that its pointer
+ *     needs the upper nibble of the record</li>
+ * </ul>
+ *
+ * @author GraviteeSource Team
+ */
+@RunWith(Parameterized.class)
+public class MaxMindDatabaseTest {
+
+    private static final int LOOKUPS = 100_000;
+
+    @ClassRule
+    public static final TemporaryFolder FIXTURES = new TemporaryFolder();
+
+    private static final Map<String, Path> PATHS = new HashMap<>();
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> fixtures() {
+        return Arrays.asList(
+            new Object[][] { { "ipv4-24", 4, 24 }, { "ipv6-24", 6, 24 }, { "ipv6-28", 6, 28 }, { "ipv4-32", 4, 32 }, { "ipv6-32", 6, 32 } }
+        );
+    }
+
+    private final String fixture;
+
+    private final int ipVersion;
+
+    private final int recordSize;
+
+    private MaxMindDatabase database;
+
+    private final MaxMindResult result = new MaxMindResult();
+
+    public MaxMindDatabaseTest(String fixture, int ipVersion, int recordSize) {
+        this.fixture = fixture;
+        this.ipVersion = ipVersion;
+        this.recordSize = recordSize;
+    }
+
+    @BeforeClass
+    public static void writeFixtures() throws Exception {
+        for (Object[] fixture : fixtures()) {
+            String name = (String) fixture[0];
+            PATHS.put(name, MaxMindDatabaseWriter.write(FIXTURES.getRoot().toPath(), name, (int) fixture[1], (int) fixture[2]));
+        }
+    }
+
+    @Before
+    public void open() throws Exception {
+        database = MaxMindDatabase.open(PATHS.get(fixture));
+    }
+
+    @Test
+    public void shouldDecodeCountryAndLocation() {
+        assertFound("1.2.3.4", "FR", 48.8582, 2.3387, 24);
+        assertFound("1.2.3.255", "FR", 48.8582, 2.3387, 24);
+        assertFound("::ffff:1.2.3.4", "FR", 48.8582, 2.3387, 24);
+    }
+
+    @Test
+    public void shouldDecodeLocationWithoutCountry() {
+        assertFound("10.1.2.3", null, -33.5, 151.25, 8);
+    }
+
+    @Test
+    public void shouldFollowPointers() {
+        assertFound("5.6.7.8", "DE", 51.2993, 9.491, 16);
+        assertFound("9.9.9.9", "JP", 35.69, 139.69, 32);
+    }
+
+    @Test
+    public void shouldReadUpperNibbleOf28BitsRecords() {
+        assumeTrue(recordSize == 28);
+
+        assertFound("100.100.1.1", "BR", -15.78, -47.93, 10);
+    }
+
+    @Test
+    public void shouldLookupIpv6Addresses() {
+        if (ipVersion == 4) {
+            assertNotFound("2001:db8::1");
+            return;
+        }
+
+        assertFound("2001:db8::1", "DE", 51.2993, 9.491, 48);
+        assertFound("2001:db8:1::1", "JP", 35.69, 139.69, 48);
+        assertNotFound("2001:db9::1");
+    }
+
+    @Test
+    public void shouldNotFindMissingAddresses() {
+        assertNotFound("8.8.8.8");
+        assertNotFound("9.9.9.8");
+        assertNotFound("100.63.255.255");
+        assertFalse(database.lookup("localhost", result));
+    }
+
+    @Test
+    public void shouldNotAllocateWhenLookingUp() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        IpAddress[] addresses = addresses("1.2.3.4", "10.1.2.3", "5.6.7.8", "9.9.9.9", "8.8.8.8", "2001:db8::1", "2001:db8:1::1");
+        long thread = Thread.currentThread().getId();
+
+        // Warms the lookups up, for them to be compiled
+        int found = lookups(addresses);
+
+        // A lookup allocating would allocate on every round, while the JIT compiler may allocate once in a while
+        long allocated = Long.MAX_VALUE;
+
+        for (int round = 0; round < 3; round++) {
+            long overhead = -threads.getThreadAllocatedBytes(thread) + threads.getThreadAllocatedBytes(thread);
+            long before = threads.getThreadAllocatedBytes(thread);
+            int measured = lookups(addresses);
+            allocated = Math.min(allocated, threads.getThreadAllocatedBytes(thread) - before - overhead);
+
+            assertEquals(found, measured);
+        }
+
+        assertEquals("Bytes allocated by " + LOOKUPS + " lookups", 0, allocated);
+    }
+
+    private int lookups(IpAddress[] addresses) {
+        int found = 0;
+
+        for (int i = 0; i < LOOKUPS; i++) {
+            if (database.lookup(addresses[i % addresses.length], result)) {
+                found++;
+            }
+        }
+
+        return found;
+    }
+
+    private void assertFound(String address, String country, double latitude, double longitude, int prefixLength) {
+        assertTrue(address, database.lookup(address, result));
+        assertEquals(address, country, result.getCountryIsoCode());
+        assertEquals(
+            address,
+            country == null ? MaxMindResult.NO_COUNTRY : (country.charAt(0) << 16) | country.charAt(1),
+            result.getCountry()
+        );
+        assertEquals(address, latitude, result.getLatitude(), 0);
+        assertEquals(address, longitude, result.getLongitude(), 0);
+        assertEquals(address, prefixLength, result.getPrefixLength());
+    }
+
+    private void assertNotFound(String address) {
+        assertFalse(address, database.lookup(address, result));
+        assertEquals(address, MaxMindResult.NO_COUNTRY, result.getCountry());
+    }
+
+    private static IpAddress[] addresses(String... addresses) {
+        IpAddress[] packed = new IpAddress[addresses.length];
+
+        for (int i = 0; i < addresses.length; i++) {
+            packed[i] = new IpAddress();
+            assertTrue(packed[i].parse(addresses[i]));
+        }
+
+        return packed;
+    }
+}
@@ -0,0 +1,453 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.mmdb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the MaxMind DB fixtures of {@link MaxMindDatabaseTest}, in the MaxMind DB format 2.0: a binary search tree on
+ * the bits of the addresses, its records given with the chosen record size, then 16 zero bytes, the data section and the
+ * metadata, after the <code>\xAB\xCD\xEFMaxMind.com</code> marker.
+ *
+ * The data section is laid out by hand, so that values are reached through pointers of every size: a value written at a
+ * given offset is padded with zero bytes up to it. In the 28 bits fixture, a record lies past 2^24 bytes, so that its
+ * pointer needs the upper nibble of the search tree records, which makes that fixture 16 MiB.
+ *
+ * @author GraviteeSource Team
+ */
+final class MaxMindDatabaseWriter {
+
+    private static final byte[] METADATA_MARKER = concat(
+        new byte[] { (byte) 0xAB, (byte) 0xCD, (byte) 0xEF },
+        "MaxMind.com".getBytes(StandardCharsets.US_ASCII)
+    );
+
+    private static final int DATA_SECTION_SEPARATOR = 16;
+
+    private static final int UTF8 = 2;
+    private static final int DOUBLE = 3;
+    private static final int BYTES = 4;
+    private static final int UINT16 = 5;
+    private static final int UINT32 = 6;
+    private static final int MAP = 7;
+    private static final int INT32 = 8;
+    private static final int UINT64 = 9;
+    private static final int UINT128 = 10;
+    private static final int ARRAY = 11;
+    private static final int BOOLEAN = 14;
+    private static final int FLOAT = 15;
+
+    private static final String[] KEYS = { "country", "iso_code", "location", "latitude", "longitude", "names", "en", "geoname_id" };
+
+    private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+    // Offsets of the keys written once in the data section, to be referred to by pointers
+    private final Map<String, Integer> keys = new HashMap<>();
+
+    private MaxMindDatabaseWriter() {}
+
+    /**
+     * Writes the fixture of the given IP version and record size to the given directory, and returns its path.
+     */
+    static Path write(Path directory, String name, int ipVersion, int recordSize) throws IOException {
+        return Files.write(directory.resolve(name + ".mmdb"), new MaxMindDatabaseWriter().build(ipVersion, recordSize));
+    }
+
+    private byte[] build(int ipVersion, int recordSize) throws IOException {
+        // Far pointers need a large enough data section, as records of 28 or 32 bits allow
+        boolean far = recordSize >= 28;
+
+        for (String key : KEYS) {
+            keys.put(key, add(utf8(key)));
+        }
+
+        int france = add(
+            map(key("geoname_id"), uint32(3017382), key("iso_code"), utf8("FR"), key("names"), map(key("en"), utf8("France")))
+        );
+
+        // 1.2.3.0/24: values of every extended type before the country, keys by pointer, the country by a 1 byte pointer
+        int fr = add(
+            map(
+                utf8("is_anycast"),
+                bool(true),
+                utf8("accuracy"),
+                int32(-7),
+                utf8("big"),
+                uint(UINT64, BigInteger.ONE.shiftLeft(40)),
+                utf8("huge"),
+                uint(UINT128, BigInteger.ONE.shiftLeft(100)),
+                utf8("subdivisions"),
+                array(map(key("iso_code"), utf8("IDF")), uint16(75)),
+                utf8("score"),
+                float32(0.5f),
+                utf8("raw"),
+                bytes(new byte[] { 1, 2, 3 }),
+                key("country"),
+                pointer(france, 0),
+                key("location"),
+                map(
+                    utf8("accuracy_radius"),
+                    uint16(20),
+                    key("latitude"),
+                    float64(48.8582),
+                    key("longitude"),
+                    float64(2.3387),
+                    utf8("time_zone"),
+                    utf8("Europe/Paris")
+                )
+            )
+        );
+
+        // 10.0.0.0/8: a location only, and a registered country which is not the country
+        int location = add(
+            map(
+                utf8("registered_country"),
+                map(key("iso_code"), utf8("US")),
+                key("location"),
+                map(key("latitude"), float32(-33.5f), key("longitude"), float32(151.25f))
+            )
+        );
+
+        // 5.6.0.0/16 and 2001:db8::/32: the country by a 2 bytes pointer, the location by a 4 bytes pointer
+        int deCountryAt = 4096;
+        int deLocationAt = 5000;
+        int de = add(map(key("country"), pointer(deCountryAt, 1), key("location"), pointer(deLocationAt, 3)));
+
+        // 9.9.9.9/32 and 2001:db8:1::/48: the country by a 3 bytes pointer if the data section is large enough
+        int jpCountryAt = far ? 600000 : 6000;
+        int jp = add(
+            map(
+                key("location"),
+                map(key("latitude"), float64(35.69), key("longitude"), float64(139.69)),
+                key("country"),
+                pointer(jpCountryAt, far ? 2 : 1)
+            )
+        );
+
+        addAt(deCountryAt, map(key("iso_code"), utf8("DE")));
+        addAt(deLocationAt, map(key("latitude"), float64(51.2993), key("longitude"), float64(9.491)));
+        addAt(jpCountryAt, map(key("names"), map(key("en"), utf8("Japan")), key("iso_code"), utf8("JP")));
+
+        Map<String, Integer> networks = new LinkedHashMap<>();
+        networks.put("1.2.3.0/24", fr);
+        networks.put("10.0.0.0/8", location);
+        networks.put("5.6.0.0/16", de);
+        networks.put("9.9.9.9/32", jp);
+
+        if (ipVersion == 6) {
+            networks.put("2001:db8::/32", de);
+            networks.put("2001:db8:1::/48", jp);
+        }
+
+        if (recordSize == 28) {
+            // 100.64.0.0/10: a record past 2^24, whose pointer needs the upper nibble of 28 bits records
+            int br = addAt(
+                (1 << 24) + 64,
+                map(
+                    key("country"),
+                    map(key("iso_code"), utf8("BR")),
+                    key("location"),
+                    map(key("latitude"), float64(-15.78), key("longitude"), float64(-47.93))
+                )
+            );
+            networks.put("100.64.0.0/10", br);
+        }
+
+        Node root = new Node();
+
+        for (Map.Entry<String, Integer> network : networks.entrySet()) {
+            insert(root, network.getKey(), network.getValue(), ipVersion == 6 ? 128 : 32);
+        }
+
+        List<Node> nodes = new ArrayList<>();
+        number(root, nodes);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(tree(nodes, recordSize));
+        out.write(new byte[DATA_SECTION_SEPARATOR]);
+        data.writeTo(out);
+        out.write(METADATA_MARKER);
+        out.write(
+            map(
+                utf8("binary_format_major_version"),
+                uint16(2),
+                utf8("binary_format_minor_version"),
+                uint16(0),
+                utf8("build_epoch"),
+                uint(UINT64, BigInteger.valueOf(1700000000)),
+                utf8("database_type"),
+                utf8("GeoIP2-City-Test"),
+                utf8("description"),
+                map(utf8("en"), utf8("Test fixture of the geoip filtering policy")),
+                utf8("ip_version"),
+                uint16(ipVersion),
+                utf8("languages"),
+                array(utf8("en")),
+                utf8("node_count"),
+                uint32(nodes.size()),
+                utf8("record_size"),
+                uint16(recordSize)
+            )
+        );
+
+        return out.toByteArray();
+    }
+
+    private int add(byte[] value) {
+        int offset = data.size();
+        data.writeBytes(value);
+        return offset;
+    }
+
+    private int addAt(int offset, byte[] value) {
+        if (data.size() > offset) {
+            throw new IllegalStateException("Offset " + offset + " is already taken");
+        }
+
+        data.writeBytes(new byte[offset - data.size()]);
+        return add(value);
+    }
+
+    private byte[] key(String key) {
+        return pointer(keys.get(key), 0);
+    }
+
+    /**
+     * Inserts the data record of a network, splitting the data records of the larger networks it belongs to. An IPv4
+     * network of an IPv6 tree is inserted in <code>::/96</code>.
+     */
+    private static void insert(Node root, String network, int offset, int bits) throws IOException {
+        int slash = network.indexOf('/');
+        BigInteger value = new BigInteger(1, InetAddress.getByName(network.substring(0, slash)).getAddress());
+        int prefixLength = Integer.parseInt(network.substring(slash + 1));
+
+        if (bits == 128 && network.indexOf(':') < 0) {
+            prefixLength += 96;
+        }
+
+        Node node = root;
+
+        for (int i = 0; i < prefixLength - 1; i++) {
+            int bit = value.testBit(bits - 1 - i) ? 1 : 0;
+            Object child = node.children[bit];
+
+            if (child == null) {
+                child = new Node();
+            } else if (!(child instanceof Node)) {
+                Node split = new Node();
+                split.children[0] = child;
+                split.children[1] = child;
+                child = split;
+            }
+
+            node.children[bit] = child;
+            node = (Node) child;
+        }
+
+        node.children[value.testBit(bits - prefixLength) ? 1 : 0] = offset;
+    }
+
+    private static void number(Node node, List<Node> nodes) {
+        node.number = nodes.size();
+        nodes.add(node);
+
+        for (Object child : node.children) {
+            if (child instanceof Node) {
+                number((Node) child, nodes);
+            }
+        }
+    }
+
+    private static byte[] tree(List<Node> nodes, int recordSize) {
+        long count = nodes.size();
+        ByteBuffer tree = ByteBuffer.allocate(nodes.size() * recordSize / 4);
+
+        for (Node node : nodes) {
+            long[] records = new long[2];
+
+            for (int i = 0; i < 2; i++) {
+                Object child = node.children[i];
+
+                if (child == null) {
+                    records[i] = count;
+                } else if (child instanceof Node) {
+                    records[i] = ((Node) child).number;
+                } else {
+                    records[i] = count + DATA_SECTION_SEPARATOR + (Integer) child;
+                }
+
+                if (records[i] >= 1L << recordSize) {
+                    throw new IllegalStateException("Record " + records[i] + " does not fit in " + recordSize + " bits");
+                }
+            }
+
+            long left = records[0];
+            long right = records[1];
+
+            if (recordSize == 24) {
+                putInt24(tree, left);
+                putInt24(tree, right);
+            } else if (recordSize == 28) {
+                putInt24(tree, left);
+                tree.put((byte) ((left >> 24) << 4 | right >> 24));
+                putInt24(tree, right);
+            } else {
+                tree.putInt((int) left);
+                tree.putInt((int) right);
+            }
+        }
+
+        return tree.array();
+    }
+
+    private static void putInt24(ByteBuffer buffer, long value) {
+        buffer.put((byte) (value >> 16)).put((byte) (value >> 8)).put((byte) value);
+    }
+
+    private static byte[] control(int type, int size) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] extended;
+        int sizeBits;
+
+        if (size < 29) {
+            sizeBits = size;
+            extended = new byte[0];
+        } else if (size < 285) {
+            sizeBits = 29;
+            extended = new byte[] { (byte) (size - 29) };
+        } else if (size < 65821) {
+            sizeBits = 30;
+            extended = new byte[] { (byte) ((size - 285) >> 8), (byte) (size - 285) };
+        } else {
+            sizeBits = 31;
+            extended = new byte[] { (byte) ((size - 65821) >> 16), (byte) ((size - 65821) >> 8), (byte) (size - 65821) };
+        }
+
+        if (type <= 7) {
+            out.write(type << 5 | sizeBits);
+        } else {
+            out.write(sizeBits);
+            out.write(type - 7);
+        }
+
+        out.writeBytes(extended);
+        return out.toByteArray();
+    }
+
+    private static byte[] pointer(int offset, int size) {
+        switch (size) {
+            case 0:
+                return new byte[] { (byte) (0x20 | offset >> 8), (byte) offset };
+            case 1:
+                int offset1 = offset - 2048;
+                return new byte[] { (byte) (0x28 | offset1 >> 16), (byte) (offset1 >> 8), (byte) offset1 };
+            case 2:
+                int offset2 = offset - 526336;
+                return new byte[] { (byte) (0x30 | offset2 >> 24), (byte) (offset2 >> 16), (byte) (offset2 >> 8), (byte) offset2 };
+            default:
+                return new byte[] { 0x38, (byte) (offset >> 24), (byte) (offset >> 16), (byte) (offset >> 8), (byte) offset };
+        }
+    }
+
+    private static byte[] utf8(String value) {
+        return concat(control(UTF8, value.getBytes(StandardCharsets.UTF_8).length), value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] float64(double value) {
+        return concat(control(DOUBLE, 8), ByteBuffer.allocate(8).putDouble(value).array());
+    }
+
+    private static byte[] float32(float value) {
+        return concat(control(FLOAT, 4), ByteBuffer.allocate(4).putFloat(value).array());
+    }
+
+    private static byte[] bytes(byte[] value) {
+        return concat(control(BYTES, value.length), value);
+    }
+
+    private static byte[] bool(boolean value) {
+        return control(BOOLEAN, value ? 1 : 0);
+    }
+
+    private static byte[] uint16(int value) {
+        return uint(UINT16, BigInteger.valueOf(value));
+    }
+
+    private static byte[] uint32(long value) {
+        return uint(UINT32, BigInteger.valueOf(value));
+    }
+
+    private static byte[] int32(int value) {
+        return uint(INT32, BigInteger.valueOf(value & 0xFFFFFFFFL));
+    }
+
+    /**
+     * Encodes an integer to its big endian bytes, without the leading zero ones.
+     */
+    private static byte[] uint(int type, BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        int start = 0;
+
+        while (start < bytes.length && bytes[start] == 0) {
+            start++;
+        }
+
+        byte[] stripped = new byte[bytes.length - start];
+        System.arraycopy(bytes, start, stripped, 0, stripped.length);
+        return concat(control(type, stripped.length), stripped);
+    }
+
+    /**
+     * Encodes a map of the given keys and values, in turn.
+     */
+    private static byte[] map(byte[]... keysAndValues) {
+        return concat(control(MAP, keysAndValues.length / 2), concat(keysAndValues));
+    }
+
+    private static byte[] array(byte[]... values) {
+        return concat(control(ARRAY, values.length), concat(values));
+    }
+
+    private static byte[] concat(byte[]... values) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        for (byte[] value : values) {
+            out.writeBytes(value);
+        }
+
+        return out.toByteArray();
+    }
+
+    private static final class Node {
+
+        // A child node, the offset of a data record, or null for no data
+        private final Object[] children = new Object[2];
+
+        private int number;
+    }
+}
@@ -0,0 +1,237 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.policy.geoipfiltering.rule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import io.gravitee.policy.geoipfiltering.configuration.Rule;
+import io.gravitee.policy.geoipfiltering.configuration.RuleType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Checks the verdicts of {@link DistanceRules} against the original haversine formula, at the ulp around the distance of
+ * the rules.
+ *
+ * @author GraviteeSource Team
+ */
+public class DistanceRulesTest {
+
+    // Half the circumference of earth, the longest distance of the original formula
+    private static final double HALF_CIRCUMFERENCE = Math.PI * 6371 * 1000;
+
+    // Enough rules never matching for the rules to be indexed
+    private static final int PADDING = 64;
+
+    private final Random random = new Random(5);
+
+    @Test
+    public void shouldLimitHaversineTermAtTheUlp() {
+        for (int i = 0; i < 100_000; i++) {
+            long distance = i < 1000 ? i : (long) Math.exp(random.nextDouble() * Math.log(3 * HALF_CIRCUMFERENCE));
+            double limit = DistanceRules.limit(distance);
+
+            if (limit == 0) {
+                assertFalse("distance " + distance, matches(0, distance));
+                continue;
+            }
+
+            assertTrue("distance " + distance, matches(Math.nextDown(limit), distance));
+            assertFalse("distance " + distance, matches(limit, distance));
+            assertFalse("distance " + distance, matches(Math.nextUp(limit), distance));
+        }
+    }
+
+    @Test
+    public void shouldMatchAsOriginalFormulaAroundTheDistance() {
+        for (int i = 0; i < 500; i++) {
+            Rule rule = rule(random.nextDouble() * 160 - 80, random.nextDouble() * 360 - 180, 1 + random.nextInt(1_000_000));
+
+            // Along the meridian, the parallel, and any other direction
+            assertSameAsOriginalAtBoundary(rule, 1, 0);
+            assertSameAsOriginalAtBoundary(rule, 0, 1);
+            assertSameAsOriginalAtBoundary(rule, random.nextDouble() * 2 - 1, random.nextDouble() * 2 - 1);
+        }
+    }
+
+    @Test
+    public void shouldNeverMatchWithoutDistance() {
+        for (long distance : new long[] { 0, -1, -1000, Long.MIN_VALUE }) {
+            Rule rule = rule(48.85, 2.35, distance);
+
+            assertEquals(0, DistanceRules.limit(distance), 0);
+            assertSameAsOriginal(rule, 48.85, 2.35);
+            assertSameAsOriginal(rule, 48.85, Math.nextUp(2.35));
+            assertFalse(new DistanceRules(Collections.singletonList(rule)).anyMatch(48.85, 2.35));
+        }
+    }
+
+    @Test
+    public void shouldMatchEverywhereBeyondHalfTheCircumference() {
+        long justBeyond = (long) Math.ceil(HALF_CIRCUMFERENCE);
+
+        for (long distance : new long[] { justBeyond - 1, justBeyond, justBeyond + 1, 2 * justBeyond, Long.MAX_VALUE }) {
+            Rule rule = rule(48.85, 2.35, distance);
+
+            // Antipodes
+            assertSameAsOriginal(rule, -48.85, -177.65);
+            assertSameAsOriginal(rule, -48.85, 182.35);
+
+            for (int i = 0; i < 1000; i++) {
+                assertSameAsOriginal(rule, random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180);
+            }
+        }
+
+        assertTrue(new DistanceRules(Collections.singletonList(rule(48.85, 2.35, justBeyond))).anyMatch(-48.85, -177.65));
+    }
+
+    @Test
+    public void shouldMatchAsOriginalFormulaOutsideUsualRanges() {
+        for (int i = 0; i < 5_000; i++) {
+            Rule rule = rule(random.nextDouble() * 400 - 200, random.nextDouble() * 1000 - 500, random.nextInt(5_000_000));
+
+            assertSameAsOriginal(rule, random.nextDouble() * 400 - 200, random.nextDouble() * 1000 - 500);
+            // The same location, shifted by whole turns
+            assertSameAsOriginal(rule, rule.getLatitude() + 360, rule.getLongitude() - 720);
+        }
+
+        Rule rule = rule(48.85, 2.35, 10_000);
+
+        assertSameAsOriginal(rule, 48.85, 362.35);
+        assertSameAsOriginal(rule, 131.15, 182.35);
+        assertSameAsOriginal(rule, Double.NaN, 2.35);
+        assertSameAsOriginal(rule, 48.85, Double.NaN);
+        assertSameAsOriginal(rule, Double.POSITIVE_INFINITY, 2.35);
+        assertSameAsOriginal(rule, 48.85, Double.NEGATIVE_INFINITY);
+        assertSameAsOriginal(rule(Double.NaN, 2.35, 10_000), 48.85, 2.35);
+        assertSameAsOriginal(rule(48.85, Double.POSITIVE_INFINITY, 10_000), 48.85, 2.35);
+    }
+
+    /**
+     * Walks from the center of the rule in the given direction, in degrees, down to the last double before the verdict
+     * of the original formula changes, and checks the verdicts a few ulps around it.
+     */
+    private void assertSameAsOriginalAtBoundary(Rule rule, double dLatitude, double dLongitude) {
+        double inside = 0;
+        double outside = 2 * Math.toDegrees(rule.getDistance() / (6371.0 * 1000)) / Math.max(Math.abs(dLatitude), 1e-3) + 1;
+
+        if (original(rule, rule.getLatitude() + outside * dLatitude, rule.getLongitude() + outside * dLongitude)) {
+            // Around a pole, the walk may not leave the rule
+            return;
+        }
+
+        while (Math.nextUp(inside) < outside) {
+            double middle = inside + (outside - inside) / 2;
+
+            if (middle <= inside || middle >= outside) {
+                break;
+            }
+
+            if (original(rule, rule.getLatitude() + middle * dLatitude, rule.getLongitude() + middle * dLongitude)) {
+                inside = middle;
+            } else {
+                outside = middle;
+            }
+        }
+
+        double latitude = rule.getLatitude() + inside * dLatitude;
+        double longitude = rule.getLongitude() + inside * dLongitude;
+
+        for (int ulps = -3; ulps <= 3; ulps++) {
+            assertSameAsOriginal(rule, ulp(latitude, ulps), longitude);
+            assertSameAsOriginal(rule, latitude, ulp(longitude, ulps));
+        }
+    }
+
+    /**
+     * Checks the verdict of the rule on its own, then indexed among rules never matching.
+     */
+    private static void assertSameAsOriginal(Rule rule, double latitude, double longitude) {
+        boolean expected = original(rule, latitude, longitude);
+        String message = rule.getLatitude() + "," + rule.getLongitude() + "," + rule.getDistance() + " / " + latitude + "," + longitude;
+
+        assertEquals(message, expected, new DistanceRules(Collections.singletonList(rule)).anyMatch(latitude, longitude));
+
+        List<Rule> indexed = new ArrayList<>(PADDING + 1);
+
+        for (int i = 0; i < PADDING; i++) {
+            indexed.add(rule(0, 0, 0));
+        }
+
+        indexed.add(rule);
+        assertEquals("indexed " + message, expected, new DistanceRules(indexed).anyMatch(latitude, longitude));
+    }
+
+    private static double ulp(double value, int ulps) {
+        for (; ulps > 0; ulps--) {
+            value = Math.nextUp(value);
+        }
+
+        for (; ulps < 0; ulps++) {
+            value = Math.nextDown(value);
+        }
+
+        return value;
+    }
+
+    private static Rule rule(double latitude, double longitude, long distance) {
+        Rule rule = new Rule();
+        rule.setType(RuleType.DISTANCE);
+        rule.setLatitude(latitude);
+        rule.setLongitude(longitude);
+        rule.setDistance(distance);
+        return rule;
+    }
+
+    /**
+     * The verdict of a DISTANCE rule, as originally computed by the policy.
+     */
+    private static boolean original(Rule rule, double reqLatitude, double reqLongitude) {
+        return distance(rule.getLatitude(), reqLatitude, rule.getLongitude(), reqLongitude) < rule.getDistance();
+    }
+
+    private static double distance(double lat1, double lat2, double lon1, double lon2) {
+        lon1 = Math.toRadians(lon1);
+        lon2 = Math.toRadians(lon2);
+        lat1 = Math.toRadians(lat1);
+        lat2 = Math.toRadians(lat2);
+
+        // Haversine formula
+        double dlon = lon2 - lon1;
+        double dlat = lat2 - lat1;
+        double a = Math.pow(Math.sin(dlat / 2), 2) + Math.cos(lat1) * Math.cos(lat2) * Math.pow(Math.sin(dlon / 2), 2);
+
+        return distance(a);
+    }
+
+    private static double distance(double a) {
+        double c = 2 * Math.asin(Math.sqrt(a));
+
+        return (c * 6371 * 1000);
+    }
+
+    /**
+     * The verdict of the original formula for a given haversine term.
+     */
+    private static boolean matches(double a, long distance) {
+        return distance(a) < distance;
+    }
+}